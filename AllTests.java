@@ -18,7 +18,7 @@ import org.junit.runners.Suite.SuiteClasses;
  *
  */
 @RunWith(Suite.class)
-@SuiteClasses({ DisplacementTest.class, ControllerTest.class })
+@SuiteClasses({ DisplacementTest.class, AnnotationTest.class, ControllerTest.class })
 public class AllTests {
 
     public static void main(String[] args) {
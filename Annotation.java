@@ -3,14 +3,26 @@
  */
 package tourguide;
 
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
  * @author pbj
  *
  */
 public class Annotation {
-    private String text;
+    private final String text;
     
-    public static final Annotation DEFAULT = getDefault();
+    /*
+     * Canonical annotations, one per distinct text. Tours hold interned annotations,
+     * so boilerplate text repeated across a catalog is stored once. Entries are weak,
+     * keyed by the annotation's own text, so an annotation nothing else uses any more
+     * drops out of the pool.
+     */
+    private static final Map<String, WeakReference<Annotation>> pool = new WeakHashMap<String, WeakReference<Annotation>>();
+    
+    public static final Annotation DEFAULT = intern("DEFAULT");
     
     public String toString() { return text; }
     
@@ -22,17 +34,61 @@ public class Annotation {
      * Seems cleaner than relying on null reference value for no annotation.
      */
     public static Annotation getDefault() {
-        return new Annotation("DEFAULT");
+        return DEFAULT;
+    }
+    
+    /*
+     * Returns the canonical annotation with the given text, creating it if need be.
+     */
+    public static Annotation intern(String text) {
+        synchronized (pool) {
+            Annotation annotation = pooled(text);
+            return annotation != null ? annotation : new Annotation(text).addToPool();
+        }
+    }
+    
+    /*
+     * Returns the canonical annotation equal to this one.
+     */
+    public Annotation intern() {
+        synchronized (pool) {
+            Annotation annotation = pooled(text);
+            return annotation != null ? annotation : addToPool();
+        }
+    }
+    
+    private static Annotation pooled(String text) {
+        WeakReference<Annotation> ref = pool.get(text);
+        return ref == null ? null : ref.get();
+    }
+    
+    // A cleared entry is removed first, as put would keep its old key, which only
+    // the pool refers to
+    private Annotation addToPool() {
+        pool.remove(text);
+        pool.put(text, new WeakReference<Annotation>(this));
+        return this;
+    }
+    
+    public static int internedCount() {
+        synchronized (pool) {
+            return pool.size();
+        }
     }
     
     public boolean isDefault() {
-        return text.equals("DEFAULT");
+        return this == DEFAULT || text.equals("DEFAULT");
     }
     
     public boolean equals(Object o) {
+        if (this == o) return true;
         if (!(o instanceof Annotation)) return false;
         Annotation oA = (Annotation) o;
         return text.equals(oA.text);
     }
     
+    public int hashCode() {
+        return text.hashCode();
+    }
+    
 }
@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+package tourguide;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests of annotation interning.
+ */
+public class AnnotationTest {
+
+    @Test
+    public void testDefaultIsShared() {
+        assertSame(Annotation.DEFAULT, Annotation.getDefault());
+        assertTrue(Annotation.getDefault().isDefault());
+        assertTrue(new Annotation("DEFAULT").isDefault());
+    }
+    
+    @Test
+    public void testInternReturnsOneInstancePerText() {
+        Annotation a = Annotation.intern("Royal Mile\n");
+        assertSame(a, Annotation.intern("Royal Mile\n"));
+        assertSame(a, new Annotation("Royal Mile\n").intern());
+    }
+    
+    @Test
+    public void testEqualAnnotationsHashAlike() {
+        Annotation a = new Annotation("Holyrood Palace\n");
+        Annotation b = new Annotation("Holyrood Palace\n");
+        assertNotSame(a, b);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+    
+    @Test
+    public void testUnusedAnnotationsLeaveThePool() throws InterruptedException {
+        Annotation a = Annotation.intern("Used once " + System.nanoTime());
+        WeakReference<Annotation> ref = new WeakReference<Annotation>(a);
+        a = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+    
+    @Test
+    public void testSavingFromAFileInternsNothing() throws IOException {
+        String unique = "Saved " + System.nanoTime() + " ";
+        List<Tour> tours = new ArrayList<Tour>();
+        for (int t = 0; t < 20; t++) {
+            TourDraft draft = new TourDraft("S" + t, "Tour " + t, new Annotation(unique + t));
+            draft.pushLeg(new Annotation(unique + "leg " + t));
+            draft.pushWaypoint(new Annotation(unique + "waypoint " + t), 0, 0);
+            tours.add(draft.publish(false));
+        }
+        Path first = Files.createTempFile("tours", ".tgtf");
+        Path second = Files.createTempFile("tours", ".tgtf");
+        try {
+            TourFile.write(first, tours);
+            TourCatalog catalog = new TourCatalog(TourFile.open(first));
+            int before = Annotation.internedCount();
+            catalog.saveTo(second);
+            assertTrue(Annotation.internedCount() <= before);
+            assertEquals(20, TourFile.open(second).size());
+        } finally {
+            Files.delete(first);
+            Files.delete(second);
+        }
+    }
+}
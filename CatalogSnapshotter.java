@@ -0,0 +1,152 @@
+package tourguide;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves point-in-time snapshots of a catalog, and restores a catalog at startup from
+ * the latest snapshot and the part of the {@link TourJournal} written after it.
+ * <p>
+ * A snapshot is a {@link TourFile} named after the journal LSN it covers, e.g.
+ * {@code catalog-1234.tgtf}. The LSN is taken before the tours are read, and tours
+ * reach the catalog before their journal entries are written. Every tour ended at or
+ * before that LSN is therefore in the snapshot, and replaying the journal after it
+ * only republishes tours the snapshot already holds, which the catalog ignores. The
+ * LSN is also kept before the start of every draft open at the time, so that the
+ * replay rebuilds those drafts too.
+ * <p>
+ * Snapshots are written to a temporary file, forced to disk and then renamed into
+ * place, so a crash never leaves a partial snapshot under a snapshot name. Readers
+ * of the catalog are not held up while a snapshot is written. Once a snapshot is in
+ * place the journal entries it covers are dropped with {@link TourJournal#compact},
+ * and older snapshots are deleted, so startup maps one snapshot and replays only
+ * the journal written since.
+ */
+public class CatalogSnapshotter {
+
+	private static Logger logger = Logger.getLogger("tourguide");
+
+	private static final String PREFIX = "catalog-";
+	private static final String SUFFIX = ".tgtf";
+
+	private final TourCatalog catalog;
+	private final TourJournal journal;
+	private final Path directory;
+	private long lastLsn = -1;
+	private int lastSize = -1;
+
+	public CatalogSnapshotter(TourCatalog catalog, TourJournal journal, Path directory) {
+		this.catalog = catalog;
+		this.journal = journal;
+		this.directory = directory;
+	}
+
+	/**
+	 * Writes a snapshot of the catalog, unless nothing has changed since the last.
+	 * @return  the snapshot written, or null if none was needed
+	 */
+	public synchronized Path snapshot() throws IOException {
+		long lsn = journal.getReplayStart();
+		int size = catalog.size();
+		if (lsn == lastLsn && size == lastSize) {
+			return null;
+		}
+		Path target = directory.resolve(PREFIX + lsn + SUFFIX);
+		Path temp = directory.resolve(PREFIX + lsn + SUFFIX + ".tmp");
+		try {
+			catalog.saveTo(temp);
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		journal.compact(lsn);
+		deleteOlderThan(lsn);
+		lastLsn = lsn;
+		lastSize = size;
+		return target;
+	}
+
+	/**
+	 * Takes a snapshot every period until the returned future is cancelled. A snapshot
+	 * that fails is logged, and the next is tried as usual.
+	 */
+	public ScheduledFuture<?> start(ScheduledExecutorService executor, long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try {
+				snapshot();
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Catalog snapshot failed", e);
+			}
+		}, period, period, unit);
+	}
+
+	private void deleteOlderThan(long keep) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				long lsn = lsnOf(file);
+				if (lsn != -1 && lsn < keep) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restores the catalog from the latest snapshot in a directory, then replays the
+	 * journal entries written after it. With no snapshot, the whole journal is
+	 * replayed into an empty catalog. The snapshot is mapped rather than read, so
+	 * its tours are only decoded as they are looked up.
+	 */
+	public static TourJournal.Recovery load(Path directory, TourJournal journal) throws IOException {
+		return load(directory, journal, TourDraft.DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * @param  cellSize  grid cell size for the waypoint indexes of tours and drafts
+	 *                   rebuilt from the journal
+	 */
+	public static TourJournal.Recovery load(Path directory, TourJournal journal, double cellSize)
+			throws IOException {
+		Path latest = null;
+		long latestLsn = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				long lsn = lsnOf(file);
+				if (lsn > latestLsn) {
+					latest = file;
+					latestLsn = lsn;
+				}
+			}
+		}
+		if (latest == null) {
+			return journal.replay(new TourCatalog(), 0, cellSize);
+		}
+		return journal.replay(new TourCatalog(TourFile.open(latest)), latestLsn, cellSize);
+	}
+
+	// Returns the LSN in a snapshot's name, or -1 if it is not a snapshot name
+	private static long lsnOf(Path file) {
+		String name = file.getFileName().toString();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -4,7 +4,6 @@
 package tourguide;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -23,6 +22,14 @@ public class Chunk {
     
     private static final double EPS = 1.0;
     
+    /*
+     * Returns a chunk with the same content that later updates to this one will not
+     * affect. Chunks that are updated in place override this.
+     */
+    public Chunk copy() {
+        return this;
+    }
+    
     /*
      * Chunk subclasses for BROWSE mode
      * 
@@ -45,41 +52,140 @@ public class Chunk {
             OverviewLine oOL = (OverviewLine) o;
             return oOL.id.equals(id) && oOL.title.equals(title);
         }
+        
+        public int hashCode() {
+            return id.hashCode() * 31 + title.hashCode();
+        }
 
     }
     
+    /*
+     * The rendered text and a hash of the lines are kept up to date as lines are
+     * added, so rendering and comparing a large overview cost little more than a
+     * small one. Lines are added through addIdAndTitle and read as copies through
+     * getLines.
+     * 
+     * copy() takes the lines by value, since the overview goes on growing. An
+     * unchanged copy is known to equal its source while both are the same size.
+     * 
+     * Synchronized, since one overview is shared by every session on a catalog.
+     */
     public static class BrowseOverview extends Chunk {
 
-        public List<OverviewLine> overviewLines;
+        private final List<OverviewLine> lines = new ArrayList<OverviewLine>();
+        private StringBuilder rendered = new StringBuilder();
+        private String renderedString;
+        private int contentHash = 1;
+        // The overview this is a copy of, until lines are added to the copy
+        private BrowseOverview source;
 
-        public BrowseOverview() {
-            overviewLines = new ArrayList<OverviewLine>();
+        public synchronized void addIdAndTitle(String id, String title) {
+            OverviewLine line = new OverviewLine(id,title);
+            lines.add(line);
+            rendered.append(id).append(": ").append(title).append(LS);
+            renderedString = null;
+            contentHash = 31 * contentHash + line.hashCode();
+            source = null;
         }
-  
-        public void addIdAndTitle(String id, String title) {
-            overviewLines.add(new OverviewLine(id,title));
+
+        public synchronized Chunk copy() {
+            BrowseOverview copy = new BrowseOverview();
+            copy.lines.addAll(lines);
+            copy.rendered.append(rendered);
+            copy.renderedString = renderedString;
+            copy.contentHash = contentHash;
+            copy.source = source != null ? source : this;
+            return copy;
         }
- 
-        public String toString() {
-            if (overviewLines.isEmpty()) {
+
+        public synchronized String toString() {
+            if (lines.isEmpty()) {
                 return "NO TOURS TO SHOW" + LS;
             }
-            StringBuffer sb = new StringBuffer();
-            for (OverviewLine line : overviewLines) {
-                sb.append(line);
+            if (renderedString == null) {
+                renderedString = rendered.toString();
             }
-            return sb.toString();
+            return renderedString;
+        }
+        
+        public synchronized int hashCode() {
+            return contentHash;
+        }
+        
+        public synchronized int size() {
+            return lines.size();
+        }
+        
+        /*
+         * Returns a copy of up to count lines starting at position from.
+         */
+        public synchronized List<OverviewLine> getLines(int from, int count) {
+            int to = (int) Math.min(lines.size(), (long) from + count);
+            if (from >= to) {
+                return new ArrayList<OverviewLine>();
+            }
+            return new ArrayList<OverviewLine>(lines.subList(from, to));
         }
         
         public boolean equals(Object o ) {
             if (!(o instanceof BrowseOverview)) return false;
             BrowseOverview oBO = (BrowseOverview) o;
-            Iterator<OverviewLine> it1 = overviewLines.iterator();
-            Iterator<OverviewLine> it2 = oBO.overviewLines.iterator();
-            while (it1.hasNext() && it2.hasNext()) {
-                if (!(it1.next().equals(it2.next()))) return false;
+            if (oBO == this) return true;
+            // Never holds both locks at once, so comparisons cannot deadlock
+            int hash;
+            int size;
+            BrowseOverview copiedFrom;
+            synchronized (this) {
+                hash = contentHash;
+                size = lines.size();
+                copiedFrom = source;
             }
-            return !(it1.hasNext()) && !(it2.hasNext());
+            List<OverviewLine> others;
+            synchronized (oBO) {
+                if (oBO.contentHash != hash || oBO.lines.size() != size) return false;
+                // Lines are only ever appended, so these hold the same lines
+                if (copiedFrom == oBO || oBO.source == this
+                        || (copiedFrom != null && copiedFrom == oBO.source)) return true;
+                others = new ArrayList<OverviewLine>(oBO.lines);
+            }
+            synchronized (this) {
+                return lines.equals(others);
+            }
+        }
+    }
+
+    /*
+     * One page of the overview. nextCursor is null on the last page.
+     */
+    public static class BrowseOverviewPage extends Chunk {
+        public List<OverviewLine> overviewLines;
+        public String nextCursor;
+        
+        public BrowseOverviewPage(List<OverviewLine> overviewLines, String nextCursor) {
+            this.overviewLines = overviewLines;
+            this.nextCursor = nextCursor;
+        }
+        public String toString() {
+            if (overviewLines.isEmpty()) {
+                return "NO TOURS TO SHOW" + LS;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (OverviewLine line : overviewLines) {
+                sb.append(line);
+            }
+            if (nextCursor != null) {
+                sb.append("MORE TOURS FOLLOW").append(LS);
+            }
+            return sb.toString();
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof BrowseOverviewPage)) return false;
+            BrowseOverviewPage oBOP = (BrowseOverviewPage) o;
+            return overviewLines.equals(oBOP.overviewLines)
+                    && (nextCursor == null ? oBOP.nextCursor == null : nextCursor.equals(oBOP.nextCursor));
+        }
+        public int hashCode() {
+            return overviewLines.hashCode() * 31 + (nextCursor == null ? 0 : nextCursor.hashCode());
         }
     }
 
@@ -118,6 +224,9 @@ public class Chunk {
             this.currentStage = currentStage;
 	    this.numberWaypoints = numberWaypoints;
         }
+        public Chunk copy() {
+            return new FollowHeader(title, currentStage, numberWaypoints);
+        }
         public String toString() {
             return String.format("%1$s  %2$d/%3$d%n",title, currentStage, numberWaypoints);
         }
@@ -136,6 +245,9 @@ public class Chunk {
         public FollowWaypoint(Annotation annotation) {
             this.annotation = annotation;
         }
+        public Chunk copy() {
+            return new FollowWaypoint(annotation);
+        }
         public String toString() {
             return String.format("Current waypoint: %n%1$s", annotation);
         }
@@ -154,6 +266,9 @@ public class Chunk {
         public FollowLeg(Annotation annotation) {
             this.annotation = annotation;
         }
+        public Chunk copy() {
+            return new FollowLeg(annotation);
+        }
         public String toString() {
             return String.format("Leg to next waypoint:%n%1$s", 
                     annotation);
@@ -173,6 +288,9 @@ public class Chunk {
             this.bearing = bearing;
             this.distance = distance;
         }
+        public Chunk copy() {
+            return new FollowBearing(bearing, distance);
+        }
         public String toString() {
             return String.format("Next waypoint is on bearing %1$.0f degrees at %2$.0fm %n", bearing, distance);
         }
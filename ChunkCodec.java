@@ -0,0 +1,308 @@
+package tourguide;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of output chunks, for sending to devices instead of the
+ * chunks' text.
+ * <p>
+ * Each chunk is a tag byte followed by its fields. Counts and stage numbers are
+ * varints. Bearings are sent in tenths of a degree and distances in tenths of a
+ * metre, both as varints, which is finer than the chunks' own whole-degree and
+ * whole-metre rounding. Ids, cursors and overview titles are sent as UTF-8 with a
+ * varint length.
+ * <p>
+ * Annotations and tour titles are sent once per connection and referred to by
+ * number after that. The first time a text is sent, the encoder gives it the next
+ * number, and the decoder numbers it the same way. So an {@link Encoder} and a
+ * {@link Decoder} are paired for the life of a connection, and must see the same
+ * messages in the same order. Each dictionary holds at most {@link #MAX_DICTIONARY}
+ * texts; anything new after that is sent in full each time.
+ * <p>
+ * How messages are framed is left to the transport. A message too large for the
+ * buffer throws BufferOverflowException and leaves the encoder as it was, so it
+ * can be retried with a larger buffer.
+ */
+public class ChunkCodec {
+
+    public static final int MAX_DICTIONARY = 4096;
+
+    private static final byte BROWSE_OVERVIEW = 1;
+    private static final byte BROWSE_OVERVIEW_PAGE = 2;
+    private static final byte BROWSE_DETAILS = 3;
+    private static final byte FOLLOW_HEADER = 4;
+    private static final byte FOLLOW_WAYPOINT = 5;
+    private static final byte FOLLOW_LEG = 6;
+    private static final byte FOLLOW_BEARING = 7;
+    private static final byte CREATE_HEADER = 8;
+
+    // How a dictionary text is sent: in full without a number, in full taking the
+    // next number, or as REFERENCE + its number
+    private static final int LITERAL = 0;
+    private static final int DEFINE = 1;
+    private static final int REFERENCE = 2;
+
+    private ChunkCodec() {
+    }
+
+    /**
+     * Encodes chunks for one connection.
+     */
+    public static class Encoder {
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        private final List<String> defined = new ArrayList<String>();
+
+        /**
+         * Writes an output list: its length, then each chunk.
+         */
+        public void encodeOutput(List<Chunk> output, ByteBuffer buffer) {
+            int start = buffer.position();
+            int known = defined.size();
+            try {
+                putVarLong(buffer, output.size());
+                for (Chunk chunk : output) {
+                    put(chunk, buffer);
+                }
+            } catch (BufferOverflowException e) {
+                rollBack(buffer, start, known);
+                throw e;
+            }
+        }
+
+        public void encode(Chunk chunk, ByteBuffer buffer) {
+            int start = buffer.position();
+            int known = defined.size();
+            try {
+                put(chunk, buffer);
+            } catch (BufferOverflowException e) {
+                rollBack(buffer, start, known);
+                throw e;
+            }
+        }
+
+        // Forgets texts numbered by a message that was never finished
+        private void rollBack(ByteBuffer buffer, int start, int known) {
+            buffer.position(start);
+            while (defined.size() > known) {
+                dictionary.remove(defined.remove(defined.size() - 1));
+            }
+        }
+
+        private void put(Chunk chunk, ByteBuffer buffer) {
+            if (chunk instanceof Chunk.FollowBearing) {
+                Chunk.FollowBearing c = (Chunk.FollowBearing) chunk;
+                buffer.put(FOLLOW_BEARING);
+                putVarLong(buffer, Math.round(c.bearing * 10) % 3600);
+                putVarLong(buffer, Math.round(c.distance * 10));
+            } else if (chunk instanceof Chunk.FollowHeader) {
+                Chunk.FollowHeader c = (Chunk.FollowHeader) chunk;
+                buffer.put(FOLLOW_HEADER);
+                putText(buffer, c.title);
+                putVarLong(buffer, c.currentStage);
+                putVarLong(buffer, c.numberWaypoints);
+            } else if (chunk instanceof Chunk.FollowWaypoint) {
+                buffer.put(FOLLOW_WAYPOINT);
+                putText(buffer, ((Chunk.FollowWaypoint) chunk).annotation.toString());
+            } else if (chunk instanceof Chunk.FollowLeg) {
+                buffer.put(FOLLOW_LEG);
+                putText(buffer, ((Chunk.FollowLeg) chunk).annotation.toString());
+            } else if (chunk instanceof Chunk.CreateHeader) {
+                Chunk.CreateHeader c = (Chunk.CreateHeader) chunk;
+                buffer.put(CREATE_HEADER);
+                putText(buffer, c.title);
+                putVarLong(buffer, c.numberLegs);
+                putVarLong(buffer, c.numberWaypoints);
+            } else if (chunk instanceof Chunk.BrowseDetails) {
+                Chunk.BrowseDetails c = (Chunk.BrowseDetails) chunk;
+                buffer.put(BROWSE_DETAILS);
+                putString(buffer, c.id);
+                putText(buffer, c.title);
+                putText(buffer, c.details.toString());
+            } else if (chunk instanceof Chunk.BrowseOverview) {
+                Chunk.BrowseOverview c = (Chunk.BrowseOverview) chunk;
+                buffer.put(BROWSE_OVERVIEW);
+                putLines(buffer, c.getLines(0, Integer.MAX_VALUE));
+            } else if (chunk instanceof Chunk.BrowseOverviewPage) {
+                Chunk.BrowseOverviewPage c = (Chunk.BrowseOverviewPage) chunk;
+                buffer.put(BROWSE_OVERVIEW_PAGE);
+                putLines(buffer, c.overviewLines);
+                if (c.nextCursor == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    buffer.put((byte) 1);
+                    putString(buffer, c.nextCursor);
+                }
+            } else {
+                throw new IllegalArgumentException("No encoding for " + chunk.getClass().getName());
+            }
+        }
+
+        private static void putLines(ByteBuffer buffer, List<Chunk.OverviewLine> lines) {
+            putVarLong(buffer, lines.size());
+            for (Chunk.OverviewLine line : lines) {
+                putString(buffer, line.id);
+                putString(buffer, line.title);
+            }
+        }
+
+        private void putText(ByteBuffer buffer, String text) {
+            Integer number = dictionary.get(text);
+            if (number != null) {
+                putVarLong(buffer, REFERENCE + number);
+            } else if (defined.size() < MAX_DICTIONARY) {
+                putVarLong(buffer, DEFINE);
+                putString(buffer, text);
+                dictionary.put(text, defined.size());
+                defined.add(text);
+            } else {
+                putVarLong(buffer, LITERAL);
+                putString(buffer, text);
+            }
+        }
+    }
+
+    /**
+     * Decodes the chunks of one connection.
+     */
+    public static class Decoder {
+        private final List<String> dictionary = new ArrayList<String>();
+        private final List<Annotation> annotations = new ArrayList<Annotation>();
+        private String lastLiteral;
+
+        public List<Chunk> decodeOutput(ByteBuffer buffer) {
+            int count = (int) getVarLong(buffer);
+            List<Chunk> output = new ArrayList<Chunk>(count);
+            for (int i = 0; i < count; i++) {
+                output.add(decode(buffer));
+            }
+            return output;
+        }
+
+        public Chunk decode(ByteBuffer buffer) {
+            byte tag = buffer.get();
+            switch (tag) {
+            case FOLLOW_BEARING:
+                return new Chunk.FollowBearing(getVarLong(buffer) / 10.0, getVarLong(buffer) / 10.0);
+            case FOLLOW_HEADER:
+                return new Chunk.FollowHeader(getText(buffer), (int) getVarLong(buffer), (int) getVarLong(buffer));
+            case FOLLOW_WAYPOINT:
+                return new Chunk.FollowWaypoint(getAnnotation(buffer));
+            case FOLLOW_LEG:
+                return new Chunk.FollowLeg(getAnnotation(buffer));
+            case CREATE_HEADER:
+                return new Chunk.CreateHeader(getText(buffer), (int) getVarLong(buffer), (int) getVarLong(buffer));
+            case BROWSE_DETAILS:
+                return new Chunk.BrowseDetails(getString(buffer), getText(buffer), getAnnotation(buffer));
+            case BROWSE_OVERVIEW: {
+                Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+                for (Chunk.OverviewLine line : getLines(buffer)) {
+                    overview.addIdAndTitle(line.id, line.title);
+                }
+                return overview;
+            }
+            case BROWSE_OVERVIEW_PAGE: {
+                List<Chunk.OverviewLine> lines = getLines(buffer);
+                String nextCursor = buffer.get() == 0 ? null : getString(buffer);
+                return new Chunk.BrowseOverviewPage(lines, nextCursor);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown chunk tag " + tag);
+            }
+        }
+
+        private static List<Chunk.OverviewLine> getLines(ByteBuffer buffer) {
+            int count = (int) getVarLong(buffer);
+            List<Chunk.OverviewLine> lines = new ArrayList<Chunk.OverviewLine>(count);
+            for (int i = 0; i < count; i++) {
+                lines.add(new Chunk.OverviewLine(getString(buffer), getString(buffer)));
+            }
+            return lines;
+        }
+
+        private String getText(ByteBuffer buffer) {
+            int number = dictionaryNumber(buffer);
+            return number < 0 ? lastLiteral : dictionary.get(number);
+        }
+
+        // Annotations are made once per dictionary text, so repeated ones are shared
+        private Annotation getAnnotation(ByteBuffer buffer) {
+            int number = dictionaryNumber(buffer);
+            if (number < 0) {
+                return new Annotation(lastLiteral);
+            }
+            Annotation annotation = annotations.get(number);
+            if (annotation == null) {
+                annotation = new Annotation(dictionary.get(number));
+                annotations.set(number, annotation);
+            }
+            return annotation;
+        }
+
+        // Returns the dictionary number of the text read, or -1 for a literal, which
+        // is left in lastLiteral
+        private int dictionaryNumber(ByteBuffer buffer) {
+            long kind = getVarLong(buffer);
+            if (kind == LITERAL) {
+                lastLiteral = getString(buffer);
+                return -1;
+            }
+            if (kind == DEFINE) {
+                dictionary.add(getString(buffer));
+                annotations.add(null);
+                return dictionary.size() - 1;
+            }
+            long number = kind - REFERENCE;
+            if (number >= dictionary.size()) {
+                throw new IllegalArgumentException("Reference to undefined text " + number);
+            }
+            return (int) number;
+        }
+    }
+
+    //--------------------------
+    // Primitive encodings
+    //--------------------------
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarLong(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        long length = getVarLong(buffer);
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -14,6 +14,12 @@ public interface Controller {
     Status addLeg(Annotation annotation);
 
     Status endNewTour();
+
+    /*
+     * Creates a whole tour in one message, checking the same rules as the messages
+     * above. Every broken rule is reported in the error.
+     */
+    Status createTour(TourSpec spec);
     
     /*
      * Browse tours mode
@@ -22,6 +28,13 @@ public interface Controller {
 
     Status showToursOverview();
 
+    /*
+     * Shows at most pageSize tours of the overview, in the order they were added.
+     * cursor is null for the first page, or the continuation cursor given with the
+     * previous page.
+     */
+    Status showToursOverviewPage(String cursor, int pageSize);
+
     /*
      * Follow tour
      */
@@ -34,5 +47,27 @@ public interface Controller {
      */
     void setLocation(double easting, double northing);
 
+    /*
+     * Applies a whole trace of locations, in order, as if setLocation had been
+     * called for each. Only the output for the end of the trace is produced.
+     */
+    TraceResult setLocations(double[] eastings, double[] northings);
+
+    TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps);
+
     List<Chunk> getOutput();
+
+    Mode getMode();
+
+    /*
+     * The author of the tours created through this controller, whose draft it
+     * carries on with.
+     */
+    String getAuthor();
+
+    /*
+     * Returns just the chunks of the output that have changed since this was last
+     * called, for clients that keep their own copy of the output.
+     */
+    OutputDelta getOutputDelta();
 }
\ No newline at end of file
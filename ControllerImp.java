@@ -5,6 +5,8 @@ package tourguide;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -14,31 +16,117 @@ public class ControllerImp implements Controller {
     private static Logger logger = Logger.getLogger("tourguide");
     private static final String LS = System.lineSeparator();
 
-    private String startBanner(String messageName) {
+    private static String startBanner(String messageName) {
         return  LS 
                 + "-------------------------------------------------------------" + LS
                 + "MESSAGE: " + messageName + LS
                 + "-------------------------------------------------------------";
     }
+
+    // The banner is only built when it will be logged.
+    private static void logMessage(String messageName) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(startBanner(messageName));
+        }
+    }
     //
     private double waypointRadius;
+    private double exitRadius;
     private double waypointSeparation ;
+    private TourValidator validator;
     private Mode mode = Mode.BROWSE ;
-    private Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
-    private ArrayList<Tour> tours = new ArrayList<Tour>();
+    private TourCatalog catalog;
+    private Chunk.BrowseOverview overview;
+    private DraftWorkspaces workspaces;
+    private String author;
+    private TourDraft draft;
     private Displacement waypointLoc;
     private List<Chunk> output = new ArrayList<Chunk>();
     private Stage stage = new Stage();
-    private Tour selectedTour = new Tour("", "", Annotation.getDefault()); 
+    private Tour selectedTour;
+    
+    // Follow mode output is written into these chunks, which are reused from one location
+    // update to the next so that following a tour creates no garbage.
+    private Chunk.FollowHeader followHeader = new Chunk.FollowHeader("", 0, 0);
+    private Chunk.FollowWaypoint followWaypoint = new Chunk.FollowWaypoint(Annotation.DEFAULT);
+    private Chunk.FollowLeg followLeg = new Chunk.FollowLeg(Annotation.DEFAULT);
+    private Chunk.FollowBearing followBearing = new Chunk.FollowBearing(0, 0);
+    
+    // The waypoint the user is at, if any. The user arrives within waypointRadius of a
+    // waypoint but only leaves once beyond exitRadius, so GPS jitter at the edge of the
+    // radius does not make the output flicker.
+    private int atWaypoint = -1;
+    // What the follow output currently shows, so a fix that only moves the user needs
+    // just the bearing updating. shownStage is -1 when there is no follow output.
+    private int shownStage = -1;
+    private int shownWaypoint = -1;
+    
+    // Fixes closer than movementThreshold to the last fix acted on are ignored
+    private double movementThreshold = 0;
+    private boolean haveLastFix;
+    private double lastFixEasting;
+    private double lastFixNorthing;
+    
+    // Copies of the output as getOutputDelta last reported it. The shared browse
+    // overview is kept as itself, with the number of its lines reported.
+    private List<Chunk> lastRead = new ArrayList<Chunk>();
+    private int lastOverviewSize;
+    private OutputDelta unchanged = new OutputDelta(0, 0, new ArrayList<OutputDelta.Change>());
     
     public ControllerImp(double waypointRadius, double waypointSeparation) {
+    	this(new TourCatalog(), waypointRadius, waypointSeparation);
+    }
+    
+    /**
+     * Creates a controller working on a catalog that may be shared with other
+     * controllers, one per user session. See {@link SessionManager}.
+     */
+    public ControllerImp(TourCatalog catalog, double waypointRadius, double waypointSeparation) {
+    	this(catalog, waypointRadius, waypointSeparation, 0.2 * waypointRadius);
+    }
+    
+    /**
+     * @param  waypointHysteresis  how much further than waypointRadius the user must go
+     *                             from a waypoint before they are no longer at it
+     */
+    public ControllerImp(TourCatalog catalog, double waypointRadius, double waypointSeparation,
+                         double waypointHysteresis) {
+    	this(catalog, null, waypointRadius, waypointSeparation, waypointHysteresis);
+    }
+    
+    /**
+     * Creates a controller for an author, who can leave a tour part way through
+     * creating it and carry on in a later session. A session for an author with a
+     * draft starts in create mode. A null author gets drafts private to this controller.
+     */
+    public ControllerImp(TourCatalog catalog, String author, double waypointRadius, double waypointSeparation) {
+    	this(catalog, author, waypointRadius, waypointSeparation, 0.2 * waypointRadius);
+    }
+    
+    public ControllerImp(TourCatalog catalog, String author, double waypointRadius, double waypointSeparation,
+                         double waypointHysteresis) {
     
     	//
+    	this.catalog = catalog;
+    	this.overview = catalog.getOverview();
+    	this.workspaces = catalog.getWorkspaces();
+    	this.author = author != null ? author : "#" + anonymousAuthors.incrementAndGet();
     	this.waypointRadius = waypointRadius ;
+    	this.exitRadius = waypointRadius + waypointHysteresis ;
     	this.waypointSeparation = waypointSeparation ;
-    	this.output.add(this.overview);
+    	this.validator = new TourValidator(waypointSeparation, Math.max(waypointRadius, waypointSeparation));
+    	this.draft = workspaces.getDraft(this.author);
+    	if (draft == null) {
+    		this.output.add(this.overview);
+    	} else {
+    		mode = Mode.CREATE;
+    		output.add(new Chunk.CreateHeader(draft.getTitle(), draft.getLegCount(), draft.getWaypointCount()));
+    	}
     }
     
+    // Numbers the controllers created without an author, so each has drafts of its own
+    private static final AtomicLong anonymousAuthors = new AtomicLong();
+    
  
 
     //--------------------------
@@ -50,19 +138,20 @@ public class ControllerImp implements Controller {
     
     @Override
     public Status startNewTour(String id, String title, Annotation annotation) {
-        logger.fine(startBanner("startNewTour"));
+        logMessage("startNewTour");
         //
         if (mode == Mode.BROWSE) {
-        	mode = Mode.CREATE;
-        	Tour tour = new Tour(id, title, annotation) ;
-        	for (Tour t : tours) {
-        		if (t.getId().equals(id)) return new Status.Error("Tour with the same id already exists");
+        	if (catalog.contains(id)) return new Status.Error("Tour with the same id already exists");
+        	TourDraft fresh = new TourDraft(id, title, annotation, Math.max(waypointRadius, waypointSeparation)) ;
+        	// Reserves the id, so no other author can use it while this tour is created
+        	if (!workspaces.start(author, fresh)) {
+        		return new Status.Error("A tour with the same id is already being created");
         	}
+        	mode = Mode.CREATE;
+        	draft = fresh;
         	Chunk header = new Chunk.CreateHeader(title, 0, 0);
-            tours.add(tour); 
             output.clear();
             output.add(header);
-            overview.addIdAndTitle(id, title);
         	return Status.OK;
         }
         return new Status.Error("Can't create a new tour - app must be in browse mode");
@@ -70,39 +159,20 @@ public class ControllerImp implements Controller {
 
     @Override
     public Status addWaypoint(Annotation annotation) {
-    	logger.fine(startBanner("addWaypoint"));
+    	logMessage("addWaypoint");
     	//
         if (mode == Mode.CREATE) {
-        	int lastIndex = tours.size()-1 ;
-        	if (lastIndex == -1) return new Status.Error("No tours to add waypoints to");
-        	Tour current = tours.get(lastIndex) ;
-        	ArrayList<Waypoint> wps = current.getWaypoints();
-        	ArrayList<Leg> lgs = current.getLegs();
-            if (wps.size() == 0) {
-            	if (lgs.size() == 0) {
-            		current.pushLeg(Annotation.getDefault());
-            	}
-            	current.pushWaypoint(annotation, waypointLoc);
-            	Chunk header = new Chunk.CreateHeader(current.getTitle(), current.getLegs().size(), 1);
-            	output.clear();
-            	output.add(header);
-            	return Status.OK;
-            }
-        	for (Waypoint w : wps) {
-        		double wDist = w.getDistance() ;
-        		double currWpDist = waypointLoc.distance();
-        		double wBearing = w.getBearing();
-        		double currWpBearing = waypointLoc.bearing();
-        		double dist = Math.sqrt(Math.pow(wDist,2) + Math.pow(currWpDist,2) - 2*wDist*currWpDist*Math.cos((wBearing - currWpBearing)*Math.PI/180));
-        		if (dist < waypointSeparation) {
-        			return new Status.Error("The waypoint is too close to some other waypoint") ;
-        		}
+        	if (draft == null) return new Status.Error("No tours to add waypoints to");
+        	TourDraft current = draft ;
+        	if (current.getWaypointIndex().anyCloserThan(waypointLoc.east, waypointLoc.north, waypointSeparation)) {
+        		return new Status.Error("The waypoint is too close to some other waypoint") ;
         	}
-        	if (wps.size() == lgs.size()) {
+        	// Leg before this waypoint with default annotation if none was added
+        	if (current.getWaypointCount() == current.getLegCount()) {
         		current.pushLeg(Annotation.getDefault());
         	}
         	current.pushWaypoint(annotation, waypointLoc);
-        	Chunk header = new Chunk.CreateHeader(current.getTitle(), current.getLegs().size(), current.getWaypoints().size());
+        	Chunk header = new Chunk.CreateHeader(current.getTitle(), current.getLegCount(), current.getWaypointCount());
         	output.clear();
         	output.add(header);
         	return Status.OK;
@@ -112,16 +182,16 @@ public class ControllerImp implements Controller {
 
     @Override
     public Status addLeg(Annotation annotation) {
-        logger.fine(startBanner("addLeg"));
+        logMessage("addLeg");
         //
         if (mode == Mode.CREATE) {
-        	int lastIndex = tours.size()-1 ;
-        	Tour current = tours.get(lastIndex) ;
-        	if (current.getLegs().size() != current.getWaypoints().size()) {
+        	if (draft == null) return new Status.Error("No tour is being created");
+        	TourDraft current = draft ;
+        	if (current.getLegCount() != current.getWaypointCount()) {
         		return new Status.Error("Can't add two legs in a row");
         	}
         	current.pushLeg(annotation);
-        	Chunk header = new Chunk.CreateHeader(current.getTitle(), current.getLegs().size(), current.getWaypoints().size());
+        	Chunk header = new Chunk.CreateHeader(current.getTitle(), current.getLegCount(), current.getWaypointCount());
         	output.clear();
         	output.add(header);
         	return Status.OK;
@@ -131,25 +201,68 @@ public class ControllerImp implements Controller {
 
     @Override
     public Status endNewTour() {
-        logger.fine(startBanner("endNewTour"));
+        logMessage("endNewTour");
         //
         if (mode == Mode.CREATE) {
-        	int lastIndex = tours.size()-1 ;
-        	Tour current = tours.get(lastIndex) ;
-        	if (current.getLegs().size() != current.getWaypoints().size()) {
+        	if (draft == null) return new Status.Error("No tour is being created");
+        	TourDraft current = draft ;
+        	if (current.getLegCount() != current.getWaypointCount()) {
         		return new Status.Error("Can't end a tour with different number of legs and waypoints");
         	}
-        	if (current.getWaypoints().size() == 0) {
-        		tours.remove(lastIndex);
+        	if (current.getWaypointCount() == 0) {
+        		workspaces.abandon(author);
+        		leaveCreateMode();
         		return new Status.Error("A tour should have at least one waypoint");
         	}
+        	// The id is reserved, so this only fails if a tour with it reached the catalog
+        	// some other way. The draft is gone either way.
+        	if (workspaces.publish(author) == null) {
+        		leaveCreateMode();
+        		return new Status.Error("Tour with the same id already exists");
+        	}
         	
-        	mode = Mode.BROWSE ;
+        	leaveCreateMode();
+        	return Status.OK;
+        }
+        return new Status.Error("Can't end creating a tour - app must be in create mode");
+    }
+
+    // Once the draft has been published or dropped, the author is back to browsing
+    private void leaveCreateMode() {
+    	mode = Mode.BROWSE ;
+    	draft = null;
+    	output.clear();
+    	showToursOverview() ;
+    }
+
+    @Override
+    public Status createTour(TourSpec spec) {
+        logMessage("createTour");
+        //
+        if (mode == Mode.BROWSE) {
+        	List<TourValidator.Violation> violations = validator.check(spec);
+        	boolean reserved = workspaces.reserve(spec.getId(), author);
+        	if (!reserved) {
+        		violations.add(0, new TourValidator.Violation(-1, "tour with the same id already exists or is being created"));
+        	}
+        	if (!violations.isEmpty()) {
+        		if (reserved) workspaces.release(spec.getId(), author);
+        		StringBuilder message = new StringBuilder("Can't create the tour: ");
+        		for (int i = 0; i < violations.size(); i++) {
+        			message.append(i == 0 ? "" : "; ").append(violations.get(i));
+        		}
+        		return new Status.Error(message.toString());
+        	}
+        	boolean added = catalog.add(validator.build(spec));
+        	workspaces.release(spec.getId(), author);
+        	if (!added) {
+        		return new Status.Error("Tour with the same id already exists");
+        	}
         	output.clear();
         	showToursOverview() ;
         	return Status.OK;
         }
-        return new Status.Error("Can't end creating a tour - app must be in create mode");
+        return new Status.Error("Can't create a new tour - app must be in browse mode");
     }
 
     //--------------------------
@@ -159,16 +272,8 @@ public class ControllerImp implements Controller {
     @Override
     public Status showTourDetails(String tourID) {
         if (mode == Mode.BROWSE) {
-        	int tourFound = 0;
-        	Tour selectedTour = new Tour("", "", Annotation.getDefault()); 
-        	for (Tour t : tours) {
-        		if (t.getId().equals(tourID)) {
-        			tourFound = 1;
-        			selectedTour = new Tour(t);
-                    break;
-        		}
-        	}
-        	if (tourFound == 0) {
+        	Tour selectedTour = catalog.get(tourID);
+        	if (selectedTour == null) {
         		return new Status.Error("App doesn't contain this tour");
         	}
         	Chunk details = new Chunk.BrowseDetails(tourID, selectedTour.getTitle(), selectedTour.getAnnotation());
@@ -182,7 +287,7 @@ public class ControllerImp implements Controller {
     @Override
     public Status showToursOverview() {
         if (mode == Mode.BROWSE) {
-        	if (tours.size() == 0) {
+        	if (catalog.size() == 0) {
   //      		output.clear();
   //      		output.add(overview);
         		return Status.OK;
@@ -194,6 +299,37 @@ public class ControllerImp implements Controller {
     	return new Status.Error("Can't show tours overview - app must be in browse mode");
     }
 
+    /*
+     * The cursor is the position in the overview of the first tour on the page. Tours
+     * are appended at the end of the overview, so pages already seen do not shift.
+     */
+    @Override
+    public Status showToursOverviewPage(String cursor, int pageSize) {
+        if (mode == Mode.BROWSE) {
+        	if (pageSize <= 0) {
+        		return new Status.Error("Page size must be positive");
+        	}
+        	int from = 0;
+        	if (cursor != null) {
+        		try {
+        			from = Integer.parseInt(cursor);
+        		} catch (NumberFormatException e) {
+        			from = -1;
+        		}
+        		if (from < 0) {
+        			return new Status.Error("Invalid overview cursor");
+        		}
+        	}
+        	List<Chunk.OverviewLine> lines = overview.getLines(from, pageSize);
+        	int next = from + lines.size();
+        	String nextCursor = next < overview.size() ? Integer.toString(next) : null;
+        	output.clear();
+        	output.add(new Chunk.BrowseOverviewPage(lines, nextCursor));
+        	return Status.OK;
+        }
+    	return new Status.Error("Can't show tours overview - app must be in browse mode");
+    }
+
     //--------------------------
     // Follow tour mode
     //--------------------------
@@ -201,17 +337,15 @@ public class ControllerImp implements Controller {
     @Override
     public Status followTour(String id) {
         if (mode == Mode.BROWSE) {
-        	int tourFound = 0;
-        	for (Tour t : tours) {
-        		if (t.getId().equals(id)) {
-        			tourFound = 1;
-        			selectedTour = new Tour(t);
-                    break;
-        		}
-        	}
-        	if (tourFound == 0) {
+        	Tour found = catalog.get(id);
+        	if (found == null) {
         		return new Status.Error("App doesn't contain this tour");
         	}
+        	selectedTour = found;
+        	stage.setStageNumber(0);
+        	atWaypoint = -1;
+        	shownStage = -1;
+        	haveLastFix = false;
         	mode = Mode.FOLLOW;
         	
         	return Status.OK;
@@ -240,158 +374,237 @@ public class ControllerImp implements Controller {
     	if (mode == Mode.CREATE) {
     		waypointLoc = new Displacement(easting,northing);
     	} else if (mode == Mode.FOLLOW) {
-    		int currStageNo = stage.getStageNumber();
-    		int numberWaypoints = selectedTour.getWaypoints().size();
-    		int waypointIndex = -1;
-    		int loopIndex = 0;
-			Displacement userLoc = new Displacement(easting, northing);
-			double userDist = userLoc.distance();
-			double userBearing = userLoc.bearing();
-			///
-    		for (Waypoint w : selectedTour.getWaypoints()) {
-    			double wDist = w.getDistance();
-    			double wBearing = w.getBearing();
-    			double dist = Math.sqrt(Math.pow(userDist,2) + Math.pow(wDist,2) - 2*userDist*wDist*Math.cos((userBearing - wBearing)*Math.PI/180));
-    			if (dist <= waypointRadius) {
-    				waypointIndex = loopIndex;
-    				break;
-    			}
-    			loopIndex++;
-    			
-    		} 
-    		// not near waypoint. display annotation of next leg
-    		if (waypointIndex == -1) {
-    			if (currStageNo == numberWaypoints) {
-    				return;
-    			}
-    			double wBearing = selectedTour.getWaypoints().get(currStageNo).getBearing();
-     			double wDist = selectedTour.getWaypoints().get(currStageNo).getDistance();
-     			
-     			double nextWpDistance = Math.sqrt(Math.pow(userDist,2) + Math.pow(wDist,2) - 2*userDist*wDist*Math.cos((userBearing - wBearing)*Math.PI/180));
-                Displacement nextWp = new Displacement(selectedTour.getWaypoints().get(currStageNo).getEasting() - easting, selectedTour.getWaypoints().get(currStageNo).getNorthing()-northing);
-     			double nextWpBearing = nextWp.bearing();
-    			Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);
-    			Chunk legInfo = new Chunk.FollowLeg(selectedTour.getLegs().get(currStageNo).getAnnotation());
-    			Chunk dirInfo = new Chunk.FollowBearing(nextWpBearing, nextWpDistance);
-    			output.clear();
-    			output.add(header);
-    			output.add(legInfo);
-    			output.add(dirInfo);
+    		if (!movedFromLastFix(easting, northing)) {
+    			return;
     		}
-    		else {
-    		Waypoint currWp = selectedTour.getWaypoints().get(waypointIndex);
-    		// if we are on the 2nd last stage
-    		if (currStageNo == numberWaypoints - 1) {
-    			// if we are close to last waypoint
-    			if (currStageNo == waypointIndex) {
-    				stage.incrementStageNumber();
-    				currStageNo = stage.getStageNumber();
-    				Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);  
-    		        Chunk waypointInfo = new Chunk.FollowWaypoint(currWp.getAnnotation());
-    		        output.clear();
-        			output.add(header);
-        			output.add(waypointInfo);
-    			}
-    			// if we are close to any waypoint except the last one
-    			else {
-    				Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);  
-    		        Chunk waypointInfo = new Chunk.FollowWaypoint(currWp.getAnnotation());
-    		        
-    		        double wBearing = selectedTour.getWaypoints().get(currStageNo).getBearing();
-        			double wDist = selectedTour.getWaypoints().get(currStageNo).getDistance();
-        			
-        			double nextWpDistance = Math.sqrt(Math.pow(userDist,2) + Math.pow(wDist,2) - 2*userDist*wDist*Math.cos((userBearing - wBearing)*Math.PI/180));
-                    Displacement nextWp = new Displacement(selectedTour.getWaypoints().get(currStageNo).getEasting() - easting, selectedTour.getWaypoints().get(currStageNo).getNorthing()-northing);
-        			double nextWpBearing = nextWp.bearing();
-        			
-        			Chunk legInfo = new Chunk.FollowLeg(selectedTour.getLegs().get(currStageNo).getAnnotation());
-        			Chunk dirInfo = new Chunk.FollowBearing(nextWpBearing, nextWpDistance);
-        			output.clear();
-        			output.add(header);
-        			output.add(waypointInfo);
-        			output.add(legInfo);
-        			output.add(dirInfo);
-    			}
+    		int waypointIndex = advanceStage(easting, northing);
+    		if (changesFollowOutput(waypointIndex)) {
+    			showFollowOutput(easting, northing, waypointIndex);
     		}
-    		// on the last stage
-    		else if (currStageNo == numberWaypoints) {
-    				Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);  
-    		        Chunk waypointInfo = new Chunk.FollowWaypoint(currWp.getAnnotation());
-    		        output.clear();
-        			output.add(header);
-        			output.add(waypointInfo);
-    		} 
-    		// if on any other stage
-    		else {
-    			// if close to next waypoint
-    			if (currStageNo == waypointIndex) {
-    				stage.incrementStageNumber();
-    				currStageNo = stage.getStageNumber();
-    				Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);  
-    		        Chunk waypointInfo = new Chunk.FollowWaypoint(currWp.getAnnotation());
-    		        
-    		        double wBearing = selectedTour.getWaypoints().get(currStageNo).getBearing();
-        			double wDist = selectedTour.getWaypoints().get(currStageNo).getDistance();
-        			
-        			double nextWpDistance = Math.sqrt(Math.pow(userDist,2) + Math.pow(wDist,2) - 2*userDist*wDist*Math.cos((userBearing - wBearing)*Math.PI/180));
-                    Displacement nextWp = new Displacement(selectedTour.getWaypoints().get(currStageNo).getEasting() - easting, selectedTour.getWaypoints().get(currStageNo).getNorthing()-northing);
-        			double nextWpBearing = nextWp.bearing();
-        			
-        			Chunk legInfo = new Chunk.FollowLeg(selectedTour.getLegs().get(currStageNo).getAnnotation());
-        			Chunk dirInfo = new Chunk.FollowBearing(nextWpBearing, nextWpDistance);
-        			output.clear();
-        			output.add(header);
-        			output.add(waypointInfo);
-        			output.add(legInfo);
-        			output.add(dirInfo);
+    	}
+    }
+
+    /**
+     * Sets how far, in metres, the user must move from the last location acted on
+     * in follow mode before a new location is looked at. Smaller moves are ignored
+     * without recomputing anything. 0, the default, acts on every location.
+     */
+    public void setMovementThreshold(double movementThreshold) {
+    	this.movementThreshold = movementThreshold;
+    }
+
+    // Records the fix if it is far enough from the last one acted on
+    private boolean movedFromLastFix(double easting, double northing) {
+    	if (haveLastFix) {
+    		double de = easting - lastFixEasting;
+    		double dn = northing - lastFixNorthing;
+    		if (de * de + dn * dn < movementThreshold * movementThreshold) {
+    			return false;
+    		}
+    	}
+    	haveLastFix = true;
+    	lastFixEasting = easting;
+    	lastFixNorthing = northing;
+    	return true;
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+    	return setLocations(eastings, northings, null);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps) {
+    	if (eastings.length != northings.length
+    			|| (timestamps != null && timestamps.length != eastings.length)) {
+    		throw new IllegalArgumentException("Trace arrays must all have the same length");
+    	}
+    	List<TraceResult.StageTransition> transitions = new ArrayList<TraceResult.StageTransition>();
+    	int last = eastings.length - 1;
+    	if (last < 0) {
+    		return new TraceResult(copyOutput(), transitions);
+    	}
+    	
+    	if (mode == Mode.CREATE) {
+    		waypointLoc = new Displacement(eastings[last], northings[last]);
+    	} else if (mode == Mode.FOLLOW) {
+    		// Only the last fix that would have changed the output needs rendering.
+    		int shownFix = -1;
+    		int shownFixWaypoint = -1;
+    		for (int i = 0; i <= last; i++) {
+    			if (!movedFromLastFix(eastings[i], northings[i])) {
+    				continue;
     			}
-    			// if close to waypoint on a stage less than current stage( waypoint on or before current waypoint)
-    			else if (currStageNo > waypointIndex) {
-    				Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);  
-    		        Chunk waypointInfo = new Chunk.FollowWaypoint(currWp.getAnnotation());
-    		        
-    		        double wBearing = selectedTour.getWaypoints().get(currStageNo).getBearing();
-        			double wDist = selectedTour.getWaypoints().get(currStageNo).getDistance();
-        			
-        			double nextWpDistance = Math.sqrt(Math.pow(userDist,2) + Math.pow(wDist,2) - 2*userDist*wDist*Math.cos((userBearing - wBearing)*Math.PI/180));
-                    Displacement nextWp = new Displacement(selectedTour.getWaypoints().get(currStageNo).getEasting() - easting, selectedTour.getWaypoints().get(currStageNo).getNorthing()-northing);
-        			double nextWpBearing = nextWp.bearing();
-        			
-        			Chunk legInfo = new Chunk.FollowLeg(selectedTour.getLegs().get(currStageNo).getAnnotation());
-        			Chunk dirInfo = new Chunk.FollowBearing(nextWpBearing, nextWpDistance);
-        			output.clear();
-        			output.add(header);
-        			output.add(waypointInfo);
-        			output.add(legInfo);
-        			output.add(dirInfo);
+    			int fromStage = stage.getStageNumber();
+    			int waypointIndex = advanceStage(eastings[i], northings[i]);
+    			if (stage.getStageNumber() != fromStage) {
+    				long time = timestamps == null ? -1 : timestamps[i];
+    				transitions.add(new TraceResult.StageTransition(i, time, fromStage, stage.getStageNumber()));
     			}
-    			// if user has jumped waypoints
-    			else {
-    				Chunk header = new Chunk.FollowHeader(selectedTour.getTitle(), currStageNo, numberWaypoints);
-    		        
-    				double wBearing = selectedTour.getWaypoints().get(currStageNo).getBearing();
-        			double wDist = selectedTour.getWaypoints().get(currStageNo).getDistance();
-        			
-        			double nextWpDistance = Math.sqrt(Math.pow(userDist,2) + Math.pow(wDist,2) - 2*userDist*wDist*Math.cos((userBearing - wBearing)*Math.PI/180));
-                    Displacement nextWp = new Displacement(selectedTour.getWaypoints().get(currStageNo).getEasting() - easting, selectedTour.getWaypoints().get(currStageNo).getNorthing()-northing);
-        			double nextWpBearing = nextWp.bearing();
-        			
-        			Chunk legInfo = new Chunk.FollowLeg(selectedTour.getLegs().get(currStageNo).getAnnotation());
-        			Chunk dirInfo = new Chunk.FollowBearing(nextWpBearing, nextWpDistance);
-        			output.clear();
-        			output.add(header);
-        			output.add(legInfo);
-        			output.add(dirInfo);
+    			if (changesFollowOutput(waypointIndex)) {
+    				shownFix = i;
+    				shownFixWaypoint = waypointIndex;
     			}
     		}
-    	}	
+    		if (shownFix != -1) {
+    			showFollowOutput(eastings[shownFix], northings[shownFix], shownFixWaypoint);
+    		}
+    	}
+    	return new TraceResult(copyOutput(), transitions);
+    }
+
+    // Moves on a stage if the user has reached the waypoint the current leg leads to.
+    // Returns the waypoint the user is at, or -1 if at none.
+    //
+    // Only the waypoint being headed for and the one the user is already at are checked
+    // directly. Any other waypoint is only looked for once the user has left both, and
+    // then through the tour's grid, so the cost per fix does not grow with the tour.
+    private int advanceStage(double easting, double northing) {
+    	int stageNo = stage.getStageNumber();
+    	if (stageNo < selectedTour.getWaypointCount() && isWithin(stageNo, easting, northing, waypointRadius)) {
+    		atWaypoint = stageNo;
+    	} else if (atWaypoint == -1 || !isWithin(atWaypoint, easting, northing, exitRadius)) {
+    		atWaypoint = selectedTour.getWaypointIndex().firstWithin(easting, northing, waypointRadius);
+    	}
+    	if (atWaypoint != -1 && atWaypoint == stageNo) {
+    		stage.incrementStageNumber();
     	}
+    	return atWaypoint;
     }
 
+    private boolean isWithin(int waypoint, double easting, double northing, double radius) {
+    	double de = selectedTour.getEasting(waypoint) - easting;
+    	double dn = selectedTour.getNorthing(waypoint) - northing;
+    	return de * de + dn * dn <= radius * radius;
+    }
+
+    // Once the tour is finished, the last output stays until the user is at a waypoint again.
+    private boolean changesFollowOutput(int waypointIndex) {
+    	return waypointIndex != -1 || stage.getStageNumber() != selectedTour.getWaypointCount();
+    }
+
+    private void showFollowOutput(double easting, double northing, int waypointIndex) {
+    	int currStageNo = stage.getStageNumber();
+    	int numberWaypoints = selectedTour.getWaypointCount();
+    	// A waypoint already passed is shown; one further ahead means the user has jumped waypoints
+    	int shownNow = waypointIndex < currStageNo ? waypointIndex : -1;
+    	if (currStageNo == shownStage && shownNow == shownWaypoint) {
+    		if (currStageNo < numberWaypoints) {
+    			updateFollowBearing(currStageNo, easting, northing);
+    		}
+    		return;
+    	}
+    	shownStage = currStageNo;
+    	shownWaypoint = shownNow;
+    	output.clear();
+    	followHeader.title = selectedTour.getTitle();
+    	followHeader.currentStage = currStageNo;
+    	followHeader.numberWaypoints = numberWaypoints;
+    	output.add(followHeader);
+    	if (shownNow != -1) {
+    		followWaypoint.annotation = selectedTour.getWaypointAnnotation(shownNow);
+    		output.add(followWaypoint);
+    	}
+    	if (currStageNo < numberWaypoints) {
+    		followLeg.annotation = selectedTour.getLegAnnotation(currStageNo);
+    		updateFollowBearing(currStageNo, easting, northing);
+    		output.add(followLeg);
+    		output.add(followBearing);
+    	}
+    }
+
+    private void updateFollowBearing(int waypoint, double easting, double northing) {
+    	double de = selectedTour.getEasting(waypoint) - easting;
+    	double dn = selectedTour.getNorthing(waypoint) - northing;
+    	followBearing.bearing = Displacement.bearing(de, dn);
+    	followBearing.distance = Displacement.distance(de, dn);
+    }
+
+    // Follow mode chunks are updated in place, so a result kept by a caller needs its own
+    private List<Chunk> copyOutput() {
+        List<Chunk> copy = new ArrayList<Chunk>(output.size());
+        for (Chunk chunk : output) {
+            copy.add(chunk.copy());
+        }
+        return copy;
+    }
+
+    /*
+     * In follow mode the chunks in the output are updated in place by later location
+     * updates, so a caller wanting to keep an output should copy what it needs.
+     */
     @Override
     public List<Chunk> getOutput() {
         return output;
     }
 
+    @Override
+    public Mode getMode() {
+        return mode;
+    }
+
+    @Override
+    public String getAuthor() {
+        return author;
+    }
+
+    /*
+     * Follow mode chunks are compared with their copies from the last read, so an
+     * unchanged fix allocates nothing. The overview only grows, so once read only its
+     * new lines are copied.
+     */
+    @Override
+    public OutputDelta getOutputDelta() {
+        int previousSize = lastRead.size();
+        List<OutputDelta.Change> changes = null;
+        for (int i = 0; i < output.size(); i++) {
+            Chunk chunk = output.get(i);
+            OutputDelta.Change change = changeSinceRead(i, chunk);
+            if (change != null) {
+                if (changes == null) {
+                    changes = new ArrayList<OutputDelta.Change>();
+                }
+                changes.add(change);
+            }
+        }
+        while (lastRead.size() > output.size()) {
+            lastRead.remove(lastRead.size() - 1);
+        }
+        if (changes == null) {
+            if (unchanged.getSize() != output.size() || previousSize != output.size()) {
+                return new OutputDelta(previousSize, output.size(), new ArrayList<OutputDelta.Change>());
+            }
+            return unchanged;
+        }
+        unchanged = new OutputDelta(output.size(), output.size(), new ArrayList<OutputDelta.Change>());
+        return new OutputDelta(previousSize, output.size(), changes);
+    }
+
+    // Returns null if the chunk is as last read, and otherwise records it as read
+    private OutputDelta.Change changeSinceRead(int position, Chunk chunk) {
+        Chunk read = position < lastRead.size() ? lastRead.get(position) : null;
+        if (chunk == overview && read == overview) {
+            List<Chunk.OverviewLine> added = overview.getLines(lastOverviewSize, Integer.MAX_VALUE);
+            if (added.isEmpty()) {
+                return null;
+            }
+            lastOverviewSize += added.size();
+            return new OutputDelta.Change(position, added);
+        }
+        if (chunk != overview && chunk.equals(read)) {
+            return null;
+        }
+        Chunk copy = chunk.copy();
+        if (chunk == overview) {
+            lastOverviewSize = ((Chunk.BrowseOverview) copy).size();
+        }
+        if (position < lastRead.size()) {
+            lastRead.set(position, chunk == overview ? overview : copy);
+        } else {
+            lastRead.add(chunk == overview ? overview : copy);
+        }
+        return new OutputDelta.Change(position, copy);
+    }
+
 
 }
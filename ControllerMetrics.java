@@ -0,0 +1,172 @@
+package tourguide;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Call counts, error counts and latency histograms for each Controller message.
+ * <p>
+ * Recorded into by {@link InstrumentedController}, and readable through JMX once
+ * {@link #register} has been called. One instance is normally shared by every
+ * session. While disabled, instrumented controllers skip timing altogether, so
+ * the cost of a message is a single volatile read.
+ */
+public class ControllerMetrics implements ControllerMetricsMXBean {
+
+    public enum Message {
+        START_NEW_TOUR("startNewTour"),
+        ADD_WAYPOINT("addWaypoint"),
+        ADD_LEG("addLeg"),
+        END_NEW_TOUR("endNewTour"),
+        CREATE_TOUR("createTour"),
+        SHOW_TOUR_DETAILS("showTourDetails"),
+        SHOW_TOURS_OVERVIEW("showToursOverview"),
+        SHOW_TOURS_OVERVIEW_PAGE("showToursOverviewPage"),
+        FOLLOW_TOUR("followTour"),
+        END_SELECTED_TOUR("endSelectedTour"),
+        SET_LOCATION("setLocation"),
+        SET_LOCATIONS("setLocations"),
+        GET_OUTPUT_DELTA("getOutputDelta");
+
+        private final String messageName;
+
+        Message(String messageName) {
+            this.messageName = messageName;
+        }
+
+        public String getMessageName() {
+            return messageName;
+        }
+    }
+
+    private static final Message[] MESSAGES = Message.values();
+
+    private volatile boolean enabled = true;
+    private final LongAdder[] calls = new LongAdder[MESSAGES.length];
+    private final LongAdder[] errors = new LongAdder[MESSAGES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[MESSAGES.length];
+
+    public ControllerMetrics() {
+        for (int i = 0; i < MESSAGES.length; i++) {
+            calls[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     * @param  name  distinguishes this instance from others in the same JVM
+     * @return       the name the metrics were registered under
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("tourguide:type=ControllerMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Records one message.
+     * @param  startNanos  the System.nanoTime() at which the message started
+     * @param  error       whether the message failed
+     */
+    public void record(Message message, long startNanos, boolean error) {
+        int i = message.ordinal();
+        latencies[i].record(System.nanoTime() - startNanos);
+        calls[i].increment();
+        if (error) {
+            errors[i].increment();
+        }
+    }
+
+    public long getCalls(Message message) {
+        return calls[message.ordinal()].sum();
+    }
+
+    public long getErrors(Message message) {
+        return errors[message.ordinal()].sum();
+    }
+
+    public LatencyHistogram getLatency(Message message) {
+        return latencies[message.ordinal()];
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Map<String, Long> getCallCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Message m : MESSAGES) {
+            result.put(m.getMessageName(), getCalls(m));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Message m : MESSAGES) {
+            result.put(m.getMessageName(), getErrors(m));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getErrorRates() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Message m : MESSAGES) {
+            long n = getCalls(m);
+            result.put(m.getMessageName(), n == 0 ? 0.0 : (double) getErrors(m) / n);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Nanos() {
+        return percentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Nanos() {
+        return percentiles(0.99);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxNanos() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Message m : MESSAGES) {
+            result.put(m.getMessageName(), getLatency(m).max());
+        }
+        return result;
+    }
+
+    private Map<String, Long> percentiles(double fraction) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Message m : MESSAGES) {
+            result.put(m.getMessageName(), getLatency(m).percentile(fraction));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < MESSAGES.length; i++) {
+            calls[i].reset();
+            errors[i].reset();
+            latencies[i].reset();
+        }
+    }
+}
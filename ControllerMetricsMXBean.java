@@ -0,0 +1,27 @@
+package tourguide;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ControllerMetrics}. Every map is keyed by message name.
+ */
+public interface ControllerMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    Map<String, Long> getCallCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Double> getErrorRates();
+
+    Map<String, Long> getLatencyP50Nanos();
+
+    Map<String, Long> getLatencyP99Nanos();
+
+    Map<String, Long> getLatencyMaxNanos();
+
+    void reset();
+}
@@ -3,11 +3,32 @@
  */
 package tourguide;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Flow;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -77,6 +98,26 @@ public class ControllerTest {
         controller = new ControllerImp(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
     }
     
+    // Directories made by tempDirectory, deleted after each test
+    private List<Path> tempDirectories = new ArrayList<Path>();
+    
+    private Path tempDirectory() throws IOException {
+        Path dir = Files.createTempDirectory("tourguide");
+        tempDirectories.add(dir);
+        return dir;
+    }
+    
+    @After
+    public void deleteTempDirectories() throws IOException {
+        for (Path dir : tempDirectories) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+    
     @Test
     public void noTours() {  
         logger.info(makeBanner("noTours"));
@@ -135,6 +176,37 @@ public class ControllerTest {
         
     }
     
+    @Test
+    public void publishConflictReturnsToBrowsing() {
+        logger.info(makeBanner("publishConflictReturnsToBrowsing"));
+        
+        TourCatalog catalog = new TourCatalog();
+        controller = new ControllerImp(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatus( controller.startNewTour("X", "Drafted", ann("Being written\n")) );
+        controller.setLocation(0, 0);
+        checkStatus( controller.addWaypoint(ann("Start\n")) );
+        
+        // A tour with the draft's id reaches the catalog without its reservation
+        TourSpec spec = new TourSpec("X", "Added", ann("Added directly\n"));
+        spec.addWaypoint(100, 100, ann("Elsewhere\n"));
+        Assert.assertTrue(catalog.add(new TourValidator(WAYPOINT_SEPARATION).build(spec)));
+        
+        checkStatusNotOK( controller.endNewTour() );
+        Assert.assertEquals(Mode.BROWSE, controller.getMode());
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+        overview.addIdAndTitle("X", "Added");
+        checkOutput(1, 0, overview);
+        
+        // An empty draft is dropped the same way
+        checkStatus( controller.startNewTour("Y", "Empty", ann("Nothing yet\n")) );
+        checkStatusNotOK( controller.endNewTour() );
+        checkOutput(1, 0, overview);
+        
+        addOnePointTour();
+        overview.addIdAndTitle("T1", "Informatics at UoE");
+        checkOutput(1, 0, overview);
+    }
+    
     @Test
     public void testAddOnePointTour() { 
         logger.info(makeBanner("testAddOnePointTour"));
@@ -427,4 +499,839 @@ public class ControllerTest {
     
     }
     
+    @Test
+    public void sessionsShareCatalog() {
+        logger.info(makeBanner("sessionsShareCatalog"));
+        
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        
+        controller = sessions.getSession("author");
+        addTwoPointTour();
+        
+        controller = sessions.getSession("follower");
+        Assert.assertEquals(2, sessions.sessionCount());
+        
+        checkStatus( controller.followTour("T2") );
+        
+        controller.setLocation(-490.0, 0.0);
+        
+        checkOutput(4,0, new Chunk.FollowHeader("Old Town", 1, 2) );
+        checkOutput(4,1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+        
+        // The author's session is unaffected by the follower
+        controller = sessions.getSession("author");
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview(); 
+        overview.addIdAndTitle("T2", "Old Town");
+        checkOutput(1, 0, overview);
+    }
+    
+    @Test
+    public void followChristmasMarketTrace() {
+        logger.info(makeBanner("followChristmasMarketTrace"));
+        
+        addThreePointTour();
+        
+        checkStatus( controller.followTour("T3") );
+        
+        TraceResult result = controller.setLocations(
+                new double[] {0.0, -490.0, 900.0, 1000.0, -490.0, 495.0},
+                new double[] {0.0,    0.0, 300.0,  300.0,    0.0, 500.0},
+                new long[]   {10,      20,    30,     40,      50,    60});
+        
+        checkOutput(2,0, new Chunk.FollowHeader("Christmas Market", 3, 3));
+        checkOutput(2,1, new Chunk.FollowWaypoint(ann("National Gallery\n")));
+        Assert.assertEquals(controller.getOutput(), result.getOutput());
+        
+        List<TraceResult.StageTransition> transitions = result.getTransitions();
+        Assert.assertEquals(3, transitions.size());
+        Assert.assertEquals(new TraceResult.StageTransition(1, 20, 0, 1), transitions.get(0));
+        Assert.assertEquals(new TraceResult.StageTransition(3, 40, 1, 2), transitions.get(1));
+        Assert.assertEquals(new TraceResult.StageTransition(5, 60, 2, 3), transitions.get(2));
+        
+        // The result keeps the output as it was at the end of the trace
+        String kept = result.getOutput().toString();
+        controller.setLocation(-490.0, 0.0);
+        Assert.assertNotEquals(kept, controller.getOutput().toString());
+        Assert.assertEquals(kept, result.getOutput().toString());
+    }
+    
+    @Test
+    public void followingAllocatesNothing() {
+        logger.info(makeBanner("followingAllocatesNothing"));
+        
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported()) return;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        
+        addThreePointTour();
+        checkStatus( controller.followTour("T3") );
+        
+        // Walk back and forth across the first waypoint, so both the near and the far
+        // output are produced. Warm up first so the measured calls are compiled.
+        final int calls = 20000;
+        for (int i = 0; i < calls; i++) {
+            controller.setLocation(i % 2 == 0 ? -490.0 : 0.0, 0.0);
+        }
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            controller.setLocation(i % 2 == 0 ? -490.0 : 0.0, 0.0);
+        }
+        long after = allocations.getThreadAllocatedBytes(threadId);
+        
+        double bytesPerCall = (double) (after - before) / calls;
+        Assert.assertTrue("Bytes allocated per setLocation: " + bytesPerCall, bytesPerCall < 1.0);
+    }
+    
+    @Test
+    public void followTourFromSavedCatalog() throws IOException {
+        logger.info(makeBanner("followTourFromSavedCatalog"));
+        
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, 8.0);
+        controller = sessions.getSession("author");
+        addOnePointTour();
+        addTwoPointTour();
+        
+        Path file = Files.createTempFile("tours", ".bin");
+        try {
+            sessions.getCatalog().saveTo(file);
+            TourCatalog reopened = new TourCatalog(TourFile.open(file));
+            // Tours keep the grid they were created with
+            Assert.assertEquals(WAYPOINT_RADIUS, reopened.get("T2").getWaypointIndex().getCellSize(), 0.0);
+            controller = new ControllerImp(reopened, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+            
+            checkStatus( controller.showToursOverview() );
+            Chunk.BrowseOverview overview = new Chunk.BrowseOverview(); 
+            overview.addIdAndTitle("T1", "Informatics at UoE");
+            overview.addIdAndTitle("T2", "Old Town");
+            checkOutput(1, 0, overview);
+            
+            checkStatusNotOK( controller.startNewTour("T2", "Old Town", ann("Again\n")) );
+            checkStatus( controller.followTour("T2") );
+            
+            controller.setLocation(-490.0, 0.0);
+            
+            checkOutput(4,0, new Chunk.FollowHeader("Old Town", 1, 2) );  
+            checkOutput(4,1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+            checkOutput(4,2, new Chunk.FollowLeg(ann("Royal Mile\n")));
+            checkOutput(4,3, new Chunk.FollowBearing(79.0, 1520.0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void publisherPushesOnlyChangedOutput() {
+        logger.info(makeBanner("publisherPushesOnlyChangedOutput"));
+        
+        OutputPublisher publisher = new OutputPublisher(controller);
+        controller = publisher;
+        
+        final List<List<Chunk>> received = new ArrayList<List<Chunk>>();
+        final Flow.Subscription[] subscription = new Flow.Subscription[1];
+        publisher.subscribe(new Flow.Subscriber<List<Chunk>>() {
+            public void onSubscribe(Flow.Subscription s) { subscription[0] = s; }
+            public void onNext(List<Chunk> output) { received.add(output); }
+            public void onError(Throwable t) { Assert.fail(t.toString()); }
+            public void onComplete() {}
+        });
+        
+        // Nothing is sent before it is asked for
+        Assert.assertEquals(0, received.size());
+        subscription[0].request(1);
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(new Chunk.BrowseOverview(), received.get(0).get(0));
+        
+        // Outputs produced with no demand outstanding are replaced by later ones
+        checkStatus( controller.startNewTour("T2", "Old Town", ann("From Edinburgh Castle to Holyrood\n")) );
+        controller.setLocation(-500, 0);
+        checkStatus( controller.addWaypoint(ann("Edinburgh Castle\n")) );
+        Assert.assertEquals(1, received.size());
+        
+        subscription[0].request(5);
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals(new Chunk.CreateHeader("Old Town", 1,  1), received.get(1).get(0));
+        
+        checkStatus( controller.addLeg(ann("Royal Mile\n")) );
+        Assert.assertEquals(3, received.size());
+        
+        // Messages that leave the output unchanged push nothing
+        controller.setLocation(1000, 300);
+        checkStatusNotOK( controller.endNewTour() );
+        Assert.assertEquals(3, received.size());
+        
+        checkStatus( controller.addWaypoint(ann("Holyrood Palace\n")) );
+        Assert.assertEquals(4, received.size());
+    }
+    
+    @Test
+    public void publisherSeesToursFromOtherSessions() {
+        logger.info(makeBanner("publisherSeesToursFromOtherSessions"));
+        
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        OutputPublisher reader = new OutputPublisher(sessions.getSession("reader"), sessions.getCatalog());
+        final List<List<Chunk>> received = new ArrayList<List<Chunk>>();
+        reader.subscribe(new Flow.Subscriber<List<Chunk>>() {
+            public void onSubscribe(Flow.Subscription s) { s.request(Long.MAX_VALUE); }
+            public void onNext(List<Chunk> output) { received.add(output); }
+            public void onError(Throwable t) { Assert.fail(t.toString()); }
+            public void onComplete() {}
+        });
+        Assert.assertEquals(1, received.size());
+        
+        // The overview is shared, so a tour published by another session is pushed
+        // without the reader sending anything
+        controller = sessions.getSession("author");
+        addOnePointTour();
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals(new Chunk.BrowseOverview(), received.get(0).get(0));
+        Assert.assertEquals(reader.getOutput(), received.get(1));
+        
+        // An overview already pushed is not pushed again
+        checkStatus( reader.showToursOverview() );
+        Assert.assertEquals(2, received.size());
+        
+        // Nor while the reader shows something else
+        checkStatus( reader.showTourDetails("T1") );
+        Assert.assertEquals(3, received.size());
+        addTwoPointTour();
+        Assert.assertEquals(3, received.size());
+    }
+    
+    @Test
+    public void metricsCountMessagesAndErrors() {
+        logger.info(makeBanner("metricsCountMessagesAndErrors"));
+        
+        ControllerMetrics metrics = new ControllerMetrics();
+        controller = new InstrumentedController(controller, metrics);
+        
+        addOnePointTour();
+        addDuplicateOnePointTour();
+        
+        Assert.assertEquals(2, metrics.getCalls(ControllerMetrics.Message.START_NEW_TOUR));
+        Assert.assertEquals(1, metrics.getErrors(ControllerMetrics.Message.START_NEW_TOUR));
+        Assert.assertEquals(0.5, metrics.getErrorRates().get("startNewTour"), 1e-9);
+        Assert.assertEquals(1, metrics.getLatency(ControllerMetrics.Message.ADD_WAYPOINT).count());
+        controller.getOutputDelta();
+        Assert.assertEquals(1, metrics.getCalls(ControllerMetrics.Message.GET_OUTPUT_DELTA));
+        
+        metrics.setEnabled(false);
+        controller.setLocation(0, 0);
+        Assert.assertEquals(1, metrics.getCalls(ControllerMetrics.Message.SET_LOCATION));
+    }
+    
+    @Test
+    public void browsingOverviewPages() {
+        logger.info(makeBanner("browsingOverviewPages"));
+        
+        addOnePointTour();
+        addTwoPointTour();
+        addThreePointTour();
+        
+        List<Chunk.OverviewLine> firstLines = new ArrayList<Chunk.OverviewLine>();
+        firstLines.add(new Chunk.OverviewLine("T1", "Informatics at UoE"));
+        firstLines.add(new Chunk.OverviewLine("T2", "Old Town"));
+        checkStatus( controller.showToursOverviewPage(null, 2) );
+        checkOutput(1, 0, new Chunk.BrowseOverviewPage(firstLines, "2"));
+        
+        List<Chunk.OverviewLine> lastLines = new ArrayList<Chunk.OverviewLine>();
+        lastLines.add(new Chunk.OverviewLine("T3", "Christmas Market"));
+        checkStatus( controller.showToursOverviewPage("2", 2) );
+        checkOutput(1, 0, new Chunk.BrowseOverviewPage(lastLines, null));
+        
+        checkStatusNotOK( controller.showToursOverviewPage("not a cursor", 2) );
+        checkStatusNotOK( controller.showToursOverviewPage(null, 0) );
+    }
+    
+    @Test
+    public void followImportedTour() throws IOException {
+        logger.info(makeBanner("followImportedTour"));
+        
+        String file = 
+                "# Two good tours and one with waypoints too close together\n"
+              + "TOUR\tT1\tInformatics at UoE\tThe Informatics Forum and Appleton Tower\\n\n"
+              + "LEG\tStart at NE corner of George Square\\n\n"
+              + "WAYPOINT\t300\t-500\tInformatics Forum\n"
+              + "END\n"
+              + "TOUR\tT5\tLeith\tA tour of Leith\\n\n"
+              + "WAYPOINT\t100\t100\tIceland Supermarket\n"
+              + "WAYPOINT\t100\t105\tAdi's flat\n"
+              + "END\n"
+              + "TOUR\tT2\tOld Town\tFrom Edinburgh Castle to Holyrood\\n\n"
+              + "WAYPOINT\t-500\t0\tEdinburgh Castle\\n\n"
+              + "LEG\tRoyal Mile\\n\n"
+              + "WAYPOINT\t1000\t300\tHolyrood Palace\\n\n"
+              + "END\n";
+        
+        TourCatalog catalog = new TourCatalog();
+        TourImporter.Result result = new TourImporter(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION).importFrom(new StringReader(file));
+        Assert.assertEquals(2, result.getImported());
+        Assert.assertEquals(1, result.getErrors().size());
+        
+        controller = new ControllerImp(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatus( controller.showToursOverview() );
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview(); 
+        overview.addIdAndTitle("T1", "Informatics at UoE");
+        overview.addIdAndTitle("T2", "Old Town");
+        checkOutput(1, 0, overview);
+        
+        checkStatus( controller.followTour("T2") );
+        controller.setLocation(0.0, 0.0);
+        checkOutput(3,0, new Chunk.FollowHeader("Old Town", 0, 2) );      
+        checkOutput(3,1, new Chunk.FollowLeg(Annotation.DEFAULT));
+        checkOutput(3,2, new Chunk.FollowBearing(270.0, 500.0));
+    }
+    
+    @Test
+    public void importSkipsIdsBeingCreated() throws IOException {
+        logger.info(makeBanner("importSkipsIdsBeingCreated"));
+        
+        TourCatalog catalog = new TourCatalog();
+        controller = new ControllerImp(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatus( controller.startNewTour("T1", "Informatics at UoE", ann("Being written\n")) );
+        
+        String file = 
+                "TOUR\tT1\tImported\tFrom a file\n\n"
+              + "WAYPOINT\t0\t0\tStart\n"
+              + "END\n";
+        TourImporter.Result result = new TourImporter(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION).importFrom(new StringReader(file));
+        Assert.assertEquals(0, result.getImported());
+        Assert.assertEquals(1, result.getErrors().size());
+        
+        controller.setLocation(300, -500);
+        checkStatus( controller.addWaypoint(ann("Informatics Forum")) );
+        checkStatus( controller.endNewTour() );
+        Assert.assertEquals("Informatics at UoE", catalog.get("T1").getTitle());
+    }
+    
+    @Test
+    public void createWholeTour() {
+        logger.info(makeBanner("createWholeTour"));
+        
+        TourSpec bad = new TourSpec("T5", "Leith", new Annotation("A tour of Leith\n"));
+        bad.addLeg(new Annotation("Walk down Leith Walk\n"));
+        bad.addLeg(new Annotation("Keep walking\n"));
+        bad.addWaypoint(100.0, 100.0, new Annotation("Iceland Supermarket\n"));
+        bad.addWaypoint(100.0, 105.0, new Annotation("Adi's flat\n"));
+        bad.addLeg(new Annotation("Back to the shore\n"));
+        Status status = controller.createTour(bad);
+        Assert.assertTrue(status instanceof Status.Error);
+        // All three broken rules are reported together
+        String message = status.toString();
+        Assert.assertTrue(message.contains("two legs in a row"));
+        Assert.assertTrue(message.contains("too close"));
+        Assert.assertTrue(message.contains("ends with a leg"));
+        
+        checkStatusNotOK( controller.createTour(new TourSpec("T6", "Empty", Annotation.DEFAULT)) );
+        
+        TourSpec good = new TourSpec("T2", "Old Town", new Annotation("From Edinburgh Castle to Holyrood\n"));
+        good.addWaypoint(-500.0, 0.0, new Annotation("Edinburgh Castle\n"));
+        good.addLeg(new Annotation("Royal Mile\n"));
+        good.addWaypoint(1000.0, 300.0, new Annotation("Holyrood Palace\n"));
+        checkStatus( controller.createTour(good) );
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview(); 
+        overview.addIdAndTitle("T2", "Old Town");
+        checkOutput(1, 0, overview);
+        checkStatusNotOK( controller.createTour(good) );
+        
+        checkStatus( controller.followTour("T2") );
+        controller.setLocation(0.0, 0.0);
+        checkOutput(3,0, new Chunk.FollowHeader("Old Town", 0, 2) );      
+        checkOutput(3,1, new Chunk.FollowLeg(Annotation.DEFAULT));
+        checkOutput(3,2, new Chunk.FollowBearing(270.0, 500.0));
+        
+        checkStatusNotOK( controller.createTour(good) );
+    }
+    
+    @Test
+    public void jitterAtWaypointEdge() {
+        logger.info(makeBanner("jitterAtWaypointEdge"));
+        
+        addTwoPointTour();
+        checkStatus( controller.followTour("T2") );
+        
+        // Arrive within the radius of Edinburgh Castle
+        controller.setLocation(-491.0, 0.0);
+        checkOutput(4,0, new Chunk.FollowHeader("Old Town", 1, 2) );      
+        checkOutput(4,1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+        
+        // Drifting just outside the radius still counts as being at the castle
+        controller.setLocation(-489.0, 0.0);
+        checkOutput(4,1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+        checkOutput(4,2, new Chunk.FollowLeg(ann("Royal Mile\n")));
+        
+        // Past the hysteresis margin the user has left it ...
+        controller.setLocation(-487.0, 0.0);
+        checkOutput(3,0, new Chunk.FollowHeader("Old Town", 1, 2) );      
+        
+        // ... and has to come back within the radius to be at it again
+        controller.setLocation(-489.0, 0.0);
+        checkOutput(3,1, new Chunk.FollowLeg(ann("Royal Mile\n")));
+        controller.setLocation(-491.0, 0.0);
+        checkOutput(4,1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+    }
+    
+    @Test
+    public void recordAndReplayTrace() throws IOException {
+        logger.info(makeBanner("recordAndReplayTrace"));
+        
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        RecordingController recorder = new RecordingController(controller, trace);
+        controller = recorder;
+        addTwoPointTour();
+        checkStatus( controller.followTour("T2") );
+        controller.setLocation(-491.0, 0.0);
+        controller.setLocations(new double[] {0.0, 999.0}, new double[] {0.0, 300.0});
+        controller.getOutputDelta();
+        recorder.close();
+        
+        Controller replayed = new ControllerImp(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        TraceReplayer.Report report = new TraceReplayer(replayed, 0)
+                .replay(new ByteArrayInputStream(trace.toByteArray()));
+        Assert.assertEquals(controller.getOutput(), replayed.getOutput());
+        // Deltas read while recording are read in the replay too, so the next ones match
+        Assert.assertEquals(1, report.count(ControllerMetrics.Message.GET_OUTPUT_DELTA));
+        Assert.assertTrue(controller.getOutputDelta().isEmpty());
+        Assert.assertTrue(replayed.getOutputDelta().isEmpty());
+        Assert.assertEquals(2, report.count(ControllerMetrics.Message.ADD_WAYPOINT));
+        Assert.assertEquals(2, report.count(ControllerMetrics.Message.END_NEW_TOUR));
+        Assert.assertEquals(3, report.count(ControllerMetrics.Message.SET_LOCATION));
+        Assert.assertEquals(1, report.count(ControllerMetrics.Message.SET_LOCATIONS));
+        Assert.assertEquals(0, report.count(ControllerMetrics.Message.CREATE_TOUR));
+    }
+    
+    @Test
+    public void journalRecoversToursAndDrafts() throws IOException {
+        logger.info(makeBanner("journalRecoversToursAndDrafts"));
+        
+        Path path = tempDirectory().resolve("tours.journal");
+        TourJournal journal = TourJournal.open(path);
+        controller = new JournalingController(
+                new ControllerImp(new TourCatalog(), "author1", WAYPOINT_RADIUS, WAYPOINT_SEPARATION), journal);
+        addTwoPointTour();
+        checkStatus( controller.startNewTour("T3", "Unfinished", ann("Still being written\n")) );
+        controller.setLocation(50.0, 50.0);
+        checkStatus( controller.addWaypoint(ann("First stop\n")) );
+        journal.close();
+        
+        // A crash part way through writing an entry leaves a torn tail
+        Files.write(path, new byte[] {0, 0, 0, 40, 1, 2, 3}, java.nio.file.StandardOpenOption.APPEND);
+        
+        journal = TourJournal.open(path);
+        TourCatalog catalog = new TourCatalog();
+        TourJournal.Recovery recovery = journal.replay(catalog);
+        Assert.assertEquals(7, recovery.getLastLsn());
+        Assert.assertEquals(1, catalog.size());
+        TourDraft draft = recovery.getDrafts().get("author1");
+        Assert.assertEquals("T3", draft.getId());
+        Assert.assertEquals(1, draft.getWaypointCount());
+        Assert.assertEquals(1, draft.getLegCount());
+        
+        // The author carries on with the recovered draft
+        catalog.getWorkspaces().restore(recovery.getDrafts());
+        Controller resumed = new ControllerImp(catalog, "author1", WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        Assert.assertEquals(Mode.CREATE, resumed.getMode());
+        Assert.assertEquals(new Chunk.CreateHeader("Unfinished", 1, 1), resumed.getOutput().get(0));
+        
+        // Appending carries on after the last whole entry
+        journal.sync(journal.logAddLeg("author1", ann("Onwards\n")));
+        journal.close();
+        journal = TourJournal.open(path);
+        Assert.assertEquals(8, journal.replay(new TourCatalog()).getLastLsn());
+        Assert.assertEquals(0, journal.replay(new TourCatalog(), 8).getDrafts().size());
+        journal.close();
+        
+        controller = new ControllerImp(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatus( controller.followTour("T2") );
+        controller.setLocation(-491.0, 0.0);
+        checkOutput(4,0, new Chunk.FollowHeader("Old Town", 1, 2) );      
+    }
+    
+    @Test
+    public void journalForgetsAbandonedDrafts() throws IOException {
+        logger.info(makeBanner("journalForgetsAbandonedDrafts"));
+        
+        Path path = tempDirectory().resolve("tours.journal");
+        TourJournal journal = TourJournal.open(path);
+        controller = new JournalingController(
+                new ControllerImp(new TourCatalog(), "author1", WAYPOINT_RADIUS, WAYPOINT_SEPARATION), journal);
+        
+        // Ending an empty tour fails, but drops the draft
+        checkStatus( controller.startNewTour("T0", "Forest Hill", ann("Former informatics building\n")) );
+        checkStatusNotOK( controller.endNewTour() );
+        Assert.assertEquals(journal.getDurableLsn(), journal.getReplayStart());
+        
+        // A failure that keeps the draft logs nothing
+        checkStatus( controller.startNewTour("T1", "Informatics at UoE", ann("Being written\n")) );
+        checkStatus( controller.addLeg(ann("Start\n")) );
+        long durable = journal.getDurableLsn();
+        checkStatusNotOK( controller.endNewTour() );
+        Assert.assertEquals(durable, journal.getDurableLsn());
+        journal.close();
+        
+        journal = TourJournal.open(path);
+        Assert.assertEquals(durable - 2, journal.getReplayStart());
+        TourJournal.Recovery recovery = journal.replay(new TourCatalog());
+        Assert.assertEquals("T1", recovery.getDrafts().get("author1").getId());
+        journal.close();
+    }
+    
+    @Test
+    public void restartFromSnapshotAndJournal() throws IOException {
+        logger.info(makeBanner("restartFromSnapshotAndJournal"));
+        
+        Path dir = tempDirectory();
+        TourCatalog catalog = new TourCatalog();
+        TourJournal journal = TourJournal.open(dir.resolve("tours.journal"));
+        controller = new JournalingController(
+                new ControllerImp(catalog, "author1", WAYPOINT_RADIUS, WAYPOINT_SEPARATION), journal);
+        CatalogSnapshotter snapshotter = new CatalogSnapshotter(catalog, journal, dir);
+        
+        addTwoPointTour();
+        checkStatus( controller.startNewTour("T3", "Meadows", ann("Around the Meadows\n")) );
+        controller.setLocation(0.0, -1000.0);
+        checkStatus( controller.addWaypoint(ann("Bruntsfield Links\n")) );
+        // The snapshot has T2; T3 is still a draft, so its entries stay to be replayed
+        Path snapshot = snapshotter.snapshot();
+        Assert.assertEquals("catalog-5.tgtf", snapshot.getFileName().toString());
+        Assert.assertNull(snapshotter.snapshot());
+        checkStatus( controller.endNewTour() );
+        journal.close();
+        
+        journal = TourJournal.open(dir.resolve("tours.journal"));
+        TourJournal.Recovery recovery = CatalogSnapshotter.load(dir, journal);
+        journal.close();
+        Assert.assertEquals(8, recovery.getLastLsn());
+        Assert.assertTrue(recovery.getDrafts().isEmpty());
+        Assert.assertEquals(2, recovery.getCatalog().size());
+        
+        controller = new ControllerImp(recovery.getCatalog(), WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatus( controller.showToursOverview() );
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview(); 
+        overview.addIdAndTitle("T2", "Old Town");
+        overview.addIdAndTitle("T3", "Meadows");
+        checkOutput(1, 0, overview);
+        checkStatus( controller.followTour("T3") );
+        controller.setLocation(0.0, -1005.0);
+        checkOutput(2,0, new Chunk.FollowHeader("Meadows", 1, 1) );      
+        checkOutput(2,1, new Chunk.FollowWaypoint(ann("Bruntsfield Links\n")));
+    }
+    
+    @Test
+    public void sessionsIgnoreMovesWithinTheThreshold() {
+        logger.info(makeBanner("sessionsIgnoreMovesWithinTheThreshold"));
+
+        SessionManager sessions = new SessionManager(new TourCatalog(), WAYPOINT_RADIUS, WAYPOINT_SEPARATION, 3.0);
+        controller = sessions.getSession("author");
+        addTwoPointTour();
+        controller = sessions.getSession("follower");
+        checkStatus( controller.followTour("T2") );
+        controller.setLocation(-600.0, 0.0);
+        checkOutput(3,2, new Chunk.FollowBearing(90.0, 100.0));
+        controller.setLocation(-598.0, 0.0);
+        checkOutput(3,2, new Chunk.FollowBearing(90.0, 100.0));
+        controller.setLocation(-596.0, 0.0);
+        checkOutput(3,2, new Chunk.FollowBearing(90.0, 96.0));
+    }
+
+    @Test
+    public void authorsDraftInParallel() {
+        logger.info(makeBanner("authorsDraftInParallel"));
+        
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        Controller alice = sessions.getSession("alice");
+        Controller bob = sessions.getSession("bob");
+        Controller follower = sessions.getSession("follower");
+        
+        checkStatus( alice.startNewTour("T1", "Informatics at UoE", ann("The Informatics Forum\n")) );
+        // The id is taken as soon as alice starts, not when she ends her tour
+        checkStatusNotOK( bob.startNewTour("T1", "Another T1", ann("Clash\n")) );
+        checkStatus( bob.startNewTour("T2", "Old Town", ann("From Edinburgh Castle to Holyrood\n")) );
+        alice.setLocation(300, -500);
+        checkStatus( alice.addWaypoint(ann("Informatics Forum\n")) );
+        bob.setLocation(-500, 0);
+        checkStatus( bob.addWaypoint(ann("Edinburgh Castle\n")) );
+        
+        // Drafts are not visible to other sessions
+        checkStatus( follower.showToursOverview() );
+        Assert.assertEquals("NO TOURS TO SHOW" + System.lineSeparator(), follower.getOutput().get(0).toString());
+        
+        // alice carries on with her draft in a new session
+        sessions.endSession("alice");
+        alice = sessions.getSession("alice");
+        Assert.assertEquals(new Chunk.CreateHeader("Informatics at UoE", 1, 1), alice.getOutput().get(0));
+        checkStatus( alice.endNewTour() );
+        checkStatus( bob.endNewTour() );
+        
+        checkStatus( follower.showToursOverview() );
+        Chunk.BrowseOverview overview = new Chunk.BrowseOverview(); 
+        overview.addIdAndTitle("T1", "Informatics at UoE");
+        overview.addIdAndTitle("T2", "Old Town");
+        Assert.assertEquals(overview, follower.getOutput().get(0));
+        Assert.assertEquals(0, sessions.getCatalog().getWorkspaces().draftCount());
+        Assert.assertFalse(sessions.getCatalog().getWorkspaces().isReserved("T1"));
+    }
+    
+    @Test
+    public void createTourLeavesDraftReservationsAlone() {
+        logger.info(makeBanner("createTourLeavesDraftReservationsAlone"));
+
+        TourCatalog catalog = new TourCatalog();
+        Controller browsing = new ControllerImp(catalog, "alice", WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        Controller drafting = new ControllerImp(catalog, "alice", WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatus( drafting.startNewTour("T1", "Informatics at UoE", ann("The Informatics Forum\n")) );
+
+        // The id is held by alice's own draft, so creating a tour with it fails too
+        TourSpec spec = new TourSpec("T1", "Another T1", ann("Clash\n"));
+        spec.addWaypoint(300, -500, ann("Informatics Forum\n"));
+        checkStatusNotOK( browsing.createTour(spec) );
+        spec = new TourSpec("T1", "Broken T1", ann("Clash\n"));
+        checkStatusNotOK( browsing.createTour(spec) );
+
+        // ... and leaves the draft's reservation in place
+        Assert.assertTrue(catalog.getWorkspaces().isReserved("T1"));
+        Controller bob = new ControllerImp(catalog, "bob", WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        checkStatusNotOK( bob.startNewTour("T1", "Bob's T1", ann("Clash\n")) );
+        drafting.setLocation(300, -500);
+        checkStatus( drafting.addWaypoint(ann("Informatics Forum\n")) );
+        checkStatus( drafting.endNewTour() );
+        Assert.assertEquals("Informatics at UoE", catalog.get("T1").getTitle());
+    }
+
+    // Sends one request to a TourServer and returns the reply, up to its END line
+    private static List<String> request(PrintWriter out, BufferedReader in, String line) throws IOException {
+        out.print(line + "\n");
+        out.flush();
+        List<String> reply = new ArrayList<String>();
+        String l;
+        while (!(l = in.readLine()).equals("END")) {
+            reply.add(l);
+        }
+        return reply;
+    }
+    
+    @Test
+    public void serveSessionsOverSockets() throws IOException {
+        logger.info(makeBanner("serveSessionsOverSockets"));
+        
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        try (TourServer server = new TourServer(sessions, 0)) {
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Assert.assertEquals("OK", request(out, in, "session\tauthor1").get(0));
+                List<String> reply = request(out, in, "startNewTour\tT2\tOld Town\tFrom Edinburgh Castle to Holyrood\\n");
+                Assert.assertEquals("OK", reply.get(0));
+                Assert.assertEquals("New tour: Old Town. #legs: 0  #waypoints: 0\\n", reply.get(1));
+                request(out, in, "setLocation\t-500\t0");
+                Assert.assertEquals("OK", request(out, in, "addWaypoint\tEdinburgh Castle\\n").get(0));
+                reply = request(out, in, "addLeg");
+                Assert.assertTrue(reply.get(0).startsWith("ERROR\t"));
+                Assert.assertEquals("ERROR\tUnknown message fly", request(out, in, "fly").get(0));
+            }
+            
+            // The draft outlives the connection, and the author carries on in a new one
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                List<String> reply = request(out, in, "session\tauthor1");
+                Assert.assertEquals("New tour: Old Town. #legs: 1  #waypoints: 1\\n", reply.get(1));
+                Assert.assertEquals("OK", request(out, in, "endNewTour").get(0));
+                reply = request(out, in, "showToursOverview");
+                Assert.assertEquals("T2: Old Town\\n", reply.get(1));
+            }
+        }
+    }
+    
+    @Test
+    public void serveEveryMessageOverSockets() throws IOException {
+        logger.info(makeBanner("serveEveryMessageOverSockets"));
+        
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        try (TourServer server = new TourServer(sessions, 0)) {
+            // Many idle connections are held open at once
+            List<Socket> idle = new ArrayList<Socket>();
+            try {
+                for (int i = 0; i < 200; i++) {
+                    idle.add(new Socket("localhost", server.getPort()));
+                }
+                try (Socket socket = new Socket("localhost", server.getPort())) {
+                    PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    List<String> reply = request(out, in, "createTour\tT2\tOld Town\tFrom Edinburgh Castle to Holyrood\\n"
+                            + "\tWAYPOINT\t-500\t0\tEdinburgh Castle\\n\tLEG\tRoyal Mile\\n"
+                            + "\tWAYPOINT\t1000\t300\tHolyrood Palace\\n");
+                    Assert.assertEquals("OK", reply.get(0));
+                    Assert.assertEquals("T2: Old Town\\n", reply.get(1));
+                    Assert.assertTrue(request(out, in, "createTour\tT3").get(0).startsWith("ERROR\t"));
+                    
+                    Assert.assertEquals("OK", request(out, in, "followTour\tT2").get(0));
+                    reply = request(out, in, "setLocations\t0,0,10\t-491,0,20");
+                    Assert.assertEquals("OK", reply.get(0));
+                    Assert.assertEquals("STAGE\t1\t20\t0\t1", reply.get(reply.size() - 1));
+                    Assert.assertTrue(request(out, in, "setLocations\t0,0,10\t1,1").get(0).startsWith("ERROR\t"));
+                    
+                    reply = request(out, in, "getOutputDelta");
+                    Assert.assertEquals("SIZE\t4", reply.get(1));
+                    Assert.assertEquals(6, reply.size());
+                    Assert.assertTrue(reply.get(2).startsWith("CHANGE\t0\t"));
+                    request(out, in, "setLocation\t-490\t0");
+                    reply = request(out, in, "getOutputDelta");
+                    Assert.assertEquals(2, reply.size());
+                    
+                    // Requests sent together are answered in order
+                    out.print("getOutput\nfly\ngetOutput\n");
+                    out.flush();
+                    List<String> replies = new ArrayList<String>();
+                    for (int i = 0; i < 3; i++) {
+                        String l;
+                        replies.add(in.readLine());
+                        while (!(l = in.readLine()).equals("END")) {
+                            Assert.assertNotNull(l);
+                        }
+                    }
+                    Assert.assertEquals("ERROR\tUnknown message fly", replies.get(1));
+                }
+            } finally {
+                for (Socket socket : idle) {
+                    socket.close();
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void slowSessionsHoldUpOnlyThemselves() throws IOException, InterruptedException {
+        logger.info(makeBanner("slowSessionsHoldUpOnlyThemselves"));
+
+        SessionManager sessions = new SessionManager(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        try (TourServer server = new TourServer(sessions, 0, 2);
+             Socket slow = new Socket("localhost", server.getPort());
+             Socket socket = new Socket("localhost", server.getPort())) {
+            PrintWriter slowOut = new PrintWriter(new OutputStreamWriter(slow.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader slowIn = new BufferedReader(new InputStreamReader(slow.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Assert.assertEquals("OK", request(slowOut, slowIn, "session\tslow").get(0));
+
+            // Holding the session's lock stands in for a message that takes a long time
+            Controller stuck = sessions.getSession("slow");
+            synchronized (stuck) {
+                slowOut.print("showToursOverview\n");
+                slowOut.flush();
+                Thread.sleep(50);
+                Assert.assertEquals("OK", request(out, in, "showToursOverview").get(0));
+                Assert.assertFalse(slowIn.ready());
+            }
+            Assert.assertEquals("OK", slowIn.readLine());
+        }
+    }
+
+    @Test
+    public void encodeOutputCompactly() {
+        logger.info(makeBanner("encodeOutputCompactly"));
+        
+        ChunkCodec.Encoder encoder = new ChunkCodec.Encoder();
+        ChunkCodec.Decoder decoder = new ChunkCodec.Decoder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        
+        addTwoPointTour();
+        encoder.encodeOutput(controller.getOutput(), buffer);
+        buffer.flip();
+        Assert.assertEquals(controller.getOutput(), decoder.decodeOutput(buffer));
+        
+        checkStatus( controller.followTour("T2") );
+        int[] sizes = new int[2];
+        for (int i = 0; i < 2; i++) {
+            controller.setLocation(-600.0 + i, 10.0);
+            buffer.clear();
+            encoder.encodeOutput(controller.getOutput(), buffer);
+            sizes[i] = buffer.position();
+            buffer.flip();
+            Assert.assertEquals(controller.getOutput(), decoder.decodeOutput(buffer));
+        }
+        // The title and leg annotation are only sent the first time
+        Assert.assertTrue(sizes[1] < sizes[0]);
+        Assert.assertTrue(sizes[1] <= 12);
+        
+        // A message that does not fit leaves the encoder as it was
+        controller.setLocation(-491.0, 0.0);
+        try {
+            encoder.encodeOutput(controller.getOutput(), ByteBuffer.allocate(8));
+            Assert.fail("Expected the buffer to overflow");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+        buffer.clear();
+        encoder.encodeOutput(controller.getOutput(), buffer);
+        buffer.flip();
+        Assert.assertEquals(controller.getOutput(), decoder.decodeOutput(buffer));
+    }
+    
+    @Test
+    public void outputDeltasSinceLastRead() {
+        logger.info(makeBanner("outputDeltasSinceLastRead"));
+        
+        addTwoPointTour();
+        checkStatus( controller.followTour("T2") );
+        controller.setLocation(-600.0, 0.0);
+        
+        // The first read reports the whole output
+        List<Chunk> client = new ArrayList<Chunk>();
+        OutputDelta delta = controller.getOutputDelta();
+        Assert.assertEquals(controller.getOutput().size(), delta.getChanges().size());
+        delta.applyTo(client);
+        Assert.assertEquals(controller.getOutput(), client);
+        Assert.assertTrue(controller.getOutputDelta().isEmpty());
+        
+        // Moving less than the bearing's rounding changes nothing
+        controller.setLocation(-600.3, 0.0);
+        Assert.assertTrue(controller.getOutputDelta().isEmpty());
+        
+        // Moving further changes just the bearing
+        controller.setLocation(-605.0, 0.0);
+        delta = controller.getOutputDelta();
+        Assert.assertEquals(1, delta.getChanges().size());
+        Assert.assertTrue(delta.getChanges().get(0).getChunk() instanceof Chunk.FollowBearing);
+        delta.applyTo(client);
+        Assert.assertEquals(controller.getOutput(), client);
+        
+        controller.setLocation(-491.0, 0.0);
+        controller.getOutputDelta().applyTo(client);
+        Assert.assertEquals(controller.getOutput(), client);
+        checkOutput(4,1, new Chunk.FollowWaypoint(ann("Edinburgh Castle\n")));
+        
+        // Fixes within the movement threshold of the last one are ignored
+        ((ControllerImp) controller).setMovementThreshold(3.0);
+        controller.setLocation(-489.0, 0.0);
+        Assert.assertTrue(controller.getOutputDelta().isEmpty());
+        controller.setLocation(-487.0, 0.0);
+        delta = controller.getOutputDelta();
+        Assert.assertEquals(3, delta.getSize());
+        delta.applyTo(client);
+        Assert.assertEquals(controller.getOutput(), client);
+        
+        // A published tour grows the shared browse overview
+        checkStatus( controller.endSelectedTour() );
+        controller.getOutputDelta().applyTo(client);
+        Chunk.BrowseOverview seen = new Chunk.BrowseOverview();
+        seen.addIdAndTitle("T2", "Old Town");
+        Assert.assertEquals(seen, client.get(0));
+        Assert.assertNotSame(controller.getOutput().get(0), client.get(0));
+        Assert.assertTrue(controller.getOutputDelta().isEmpty());
+        
+        // The client's copy only changes when a delta is applied, which adds just the new line
+        addOnePointTour();
+        Assert.assertEquals(seen, client.get(0));
+        delta = controller.getOutputDelta();
+        Assert.assertEquals(1, delta.getChanges().size());
+        Assert.assertEquals(1, delta.getChanges().get(0).getAppendedLines().size());
+        delta.applyTo(client);
+        seen.addIdAndTitle("T1", "Informatics at UoE");
+        Assert.assertEquals(seen, client.get(0));
+        Assert.assertEquals(1, client.size());
+    }
+    
 }
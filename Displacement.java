@@ -1,5 +1,6 @@
 package tourguide;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** 
@@ -29,7 +30,9 @@ public class Displacement {
      * @param  n  the position with respect to the reference point on the vertical axis
      */
     public Displacement(double e, double n) {
-        logger.finer("East: " + e + "  North: "  + n);
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("East: " + e + "  North: "  + n);
+        }
         
         east = e;
         north = n;
@@ -47,7 +50,18 @@ public class Displacement {
     public double distance() {
         logger.finer("Entering");
         
-        return Math.sqrt(east * east + north * north);
+        return distance(east, north);
+    }
+    
+    /**
+     * Returns the distance of the position (e, n) from the reference point, without
+     * needing a Displacement object to be created.
+     * @param  e  the position with respect to the reference point on the horizontal axis
+     * @param  n  the position with respect to the reference point on the vertical axis
+     * @return    the distance of (e, n) from the reference point
+     */
+    public static double distance(double e, double n) {
+        return Math.sqrt(e * e + n * n);
     }
     
     /**
@@ -64,11 +78,22 @@ public class Displacement {
     // Bearings measured clockwise from north direction.
     public double bearing() {
         logger.finer("Entering");
-              
+        
+        return bearing(east, north);
+    }
+    
+    /**
+     * Returns the bearing in degrees of the position (e, n) from the reference point,
+     * without needing a Displacement object to be created.
+     * @param  e  the position with respect to the reference point on the horizontal axis
+     * @param  n  the position with respect to the reference point on the vertical axis
+     * @return    the bearing of (e, n) from the reference point, between 0 and 360 degrees
+     */
+    public static double bearing(double e, double n) {
         // atan2(y,x) computes angle from x-axis towards y-axis, returning a negative result
         // when y is negative.
         
-        double inRadians = Math.atan2(east, north);
+        double inRadians = Math.atan2(e, n);
         
         if (inRadians < 0) {
             inRadians = inRadians + 2 * Math.PI;
@@ -0,0 +1,124 @@
+package tourguide;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tours authors are part way through creating, one draft per author, kept apart
+ * from the published tours of a {@link TourCatalog}.
+ * <p>
+ * A draft belongs to its author rather than to a session, so an author who comes
+ * back in a new session carries on with the same draft. Starting a draft reserves
+ * its id, so a second author choosing the same id is told at once rather than when
+ * ending the tour. A draft is published with {@link #publish}, which adds the tour to
+ * the catalog in one step and only then lets go of the id.
+ * <p>
+ * Drafts and reservations are held in maps of their own, so authors working in
+ * parallel never take the catalog's lock, and browsing and following sessions
+ * never see or wait on drafts. Each author's draft should be worked on by one
+ * session at a time.
+ */
+public class DraftWorkspaces {
+
+	private final TourCatalog catalog;
+	private final ConcurrentHashMap<String, TourDraft> drafts = new ConcurrentHashMap<String, TourDraft>();
+	// Reserved tour id -> author
+	private final ConcurrentHashMap<String, String> reservations = new ConcurrentHashMap<String, String>();
+
+	DraftWorkspaces(TourCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * @return  the author's draft, or null if they have none
+	 */
+	public TourDraft getDraft(String author) {
+		return drafts.get(author);
+	}
+
+	public int draftCount() {
+		return drafts.size();
+	}
+
+	/**
+	 * Reserves a tour id for an author, so nobody else can publish a tour with it.
+	 * An id the author holds already, for their draft, is not reserved again, so a
+	 * caller that is given true can always release what it reserved.
+	 * @return  false if the id is published already or reserved by anyone
+	 */
+	public boolean reserve(String id, String author) {
+		if (reservations.putIfAbsent(id, author) != null) {
+			return false;
+		}
+		if (catalog.containsSettled(id)) {
+			reservations.remove(id, author);
+			return false;
+		}
+		return true;
+	}
+
+	public void release(String id, String author) {
+		reservations.remove(id, author);
+	}
+
+	public boolean isReserved(String id) {
+		return reservations.containsKey(id);
+	}
+
+	/**
+	 * Makes a new draft the author's current one, reserving its id. Any draft the
+	 * author already had is abandoned.
+	 * @return  false, leaving the author's drafts as they were, if the id cannot be
+	 *          reserved
+	 */
+	public boolean start(String author, TourDraft draft) {
+		TourDraft previous = drafts.get(author);
+		boolean sameId = previous != null && previous.getId().equals(draft.getId());
+		if (!sameId && !reserve(draft.getId(), author)) {
+			return false;
+		}
+		drafts.put(author, draft);
+		if (previous != null && !sameId) {
+			release(previous.getId(), author);
+		}
+		return true;
+	}
+
+	/**
+	 * Publishes the author's draft into the catalog and ends it.
+	 * @return  the tour published, or null if the author has no draft or the catalog
+	 *          already has a tour with its id
+	 */
+	public Tour publish(String author) {
+		TourDraft draft = drafts.get(author);
+		if (draft == null) {
+			return null;
+		}
+		Tour tour = draft.publish();
+		boolean added = catalog.add(tour);
+		drafts.remove(author, draft);
+		release(draft.getId(), author);
+		return added ? tour : null;
+	}
+
+	/**
+	 * Drops the author's draft, if any, and its reservation.
+	 */
+	public void abandon(String author) {
+		TourDraft draft = drafts.remove(author);
+		if (draft != null) {
+			release(draft.getId(), author);
+		}
+	}
+
+	/**
+	 * Puts back drafts recovered after a restart, such as those from
+	 * {@link TourJournal.Recovery#getDrafts}. A draft whose id has been published
+	 * meanwhile is dropped.
+	 */
+	public void restore(Map<String, TourDraft> recovered) {
+		for (Map.Entry<String, TourDraft> entry : recovered.entrySet()) {
+			start(entry.getKey(), entry.getValue());
+		}
+	}
+}
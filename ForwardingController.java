@@ -0,0 +1,103 @@
+package tourguide;
+
+import java.util.List;
+
+/**
+ * A Controller that passes every message on to another Controller.
+ * <p>
+ * Subclasses override just the messages they want to observe or change, calling
+ * the super method to reach the wrapped controller.
+ */
+public abstract class ForwardingController implements Controller {
+
+    protected final Controller delegate;
+
+    protected ForwardingController(Controller delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Status startNewTour(String id, String title, Annotation annotation) {
+        return delegate.startNewTour(id, title, annotation);
+    }
+
+    @Override
+    public Status addWaypoint(Annotation annotation) {
+        return delegate.addWaypoint(annotation);
+    }
+
+    @Override
+    public Status addLeg(Annotation annotation) {
+        return delegate.addLeg(annotation);
+    }
+
+    @Override
+    public Status endNewTour() {
+        return delegate.endNewTour();
+    }
+
+    @Override
+    public Status createTour(TourSpec spec) {
+        return delegate.createTour(spec);
+    }
+
+    @Override
+    public Status showTourDetails(String id) {
+        return delegate.showTourDetails(id);
+    }
+
+    @Override
+    public Status showToursOverview() {
+        return delegate.showToursOverview();
+    }
+
+    @Override
+    public Status showToursOverviewPage(String cursor, int pageSize) {
+        return delegate.showToursOverviewPage(cursor, pageSize);
+    }
+
+    @Override
+    public Status followTour(String id) {
+        return delegate.followTour(id);
+    }
+
+    @Override
+    public Status endSelectedTour() {
+        return delegate.endSelectedTour();
+    }
+
+    @Override
+    public void setLocation(double easting, double northing) {
+        delegate.setLocation(easting, northing);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        return delegate.setLocations(eastings, northings);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps) {
+        return delegate.setLocations(eastings, northings, timestamps);
+    }
+
+    @Override
+    public List<Chunk> getOutput() {
+        return delegate.getOutput();
+    }
+
+    @Override
+    public Mode getMode() {
+        return delegate.getMode();
+    }
+
+    @Override
+    public String getAuthor() {
+        return delegate.getAuthor();
+    }
+
+    @Override
+    public OutputDelta getOutputDelta() {
+        return delegate.getOutputDelta();
+    }
+}
@@ -0,0 +1,198 @@
+package tourguide;
+
+import tourguide.ControllerMetrics.Message;
+
+/**
+ * Wraps a Controller and records every message into a {@link ControllerMetrics}.
+ * <p>
+ * A message counts as an error when it returns a Status.Error or throws.
+ */
+public class InstrumentedController extends ForwardingController {
+
+    private final ControllerMetrics metrics;
+
+    public InstrumentedController(Controller controller, ControllerMetrics metrics) {
+        super(controller);
+        this.metrics = metrics;
+    }
+
+    private Status timed(Message message, long start, Status status) {
+        metrics.record(message, start, status instanceof Status.Error);
+        return status;
+    }
+
+    private void failed(Message message, long start) {
+        metrics.record(message, start, true);
+    }
+
+    @Override
+    public Status startNewTour(String id, String title, Annotation annotation) {
+        if (!metrics.isEnabled()) return super.startNewTour(id, title, annotation);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.START_NEW_TOUR, start, super.startNewTour(id, title, annotation));
+        } catch (RuntimeException e) {
+            failed(Message.START_NEW_TOUR, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status addWaypoint(Annotation annotation) {
+        if (!metrics.isEnabled()) return super.addWaypoint(annotation);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.ADD_WAYPOINT, start, super.addWaypoint(annotation));
+        } catch (RuntimeException e) {
+            failed(Message.ADD_WAYPOINT, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status addLeg(Annotation annotation) {
+        if (!metrics.isEnabled()) return super.addLeg(annotation);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.ADD_LEG, start, super.addLeg(annotation));
+        } catch (RuntimeException e) {
+            failed(Message.ADD_LEG, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status endNewTour() {
+        if (!metrics.isEnabled()) return super.endNewTour();
+        long start = System.nanoTime();
+        try {
+            return timed(Message.END_NEW_TOUR, start, super.endNewTour());
+        } catch (RuntimeException e) {
+            failed(Message.END_NEW_TOUR, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status createTour(TourSpec spec) {
+        if (!metrics.isEnabled()) return super.createTour(spec);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.CREATE_TOUR, start, super.createTour(spec));
+        } catch (RuntimeException e) {
+            failed(Message.CREATE_TOUR, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status showTourDetails(String id) {
+        if (!metrics.isEnabled()) return super.showTourDetails(id);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.SHOW_TOUR_DETAILS, start, super.showTourDetails(id));
+        } catch (RuntimeException e) {
+            failed(Message.SHOW_TOUR_DETAILS, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status showToursOverview() {
+        if (!metrics.isEnabled()) return super.showToursOverview();
+        long start = System.nanoTime();
+        try {
+            return timed(Message.SHOW_TOURS_OVERVIEW, start, super.showToursOverview());
+        } catch (RuntimeException e) {
+            failed(Message.SHOW_TOURS_OVERVIEW, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status showToursOverviewPage(String cursor, int pageSize) {
+        if (!metrics.isEnabled()) return super.showToursOverviewPage(cursor, pageSize);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.SHOW_TOURS_OVERVIEW_PAGE, start, super.showToursOverviewPage(cursor, pageSize));
+        } catch (RuntimeException e) {
+            failed(Message.SHOW_TOURS_OVERVIEW_PAGE, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status followTour(String id) {
+        if (!metrics.isEnabled()) return super.followTour(id);
+        long start = System.nanoTime();
+        try {
+            return timed(Message.FOLLOW_TOUR, start, super.followTour(id));
+        } catch (RuntimeException e) {
+            failed(Message.FOLLOW_TOUR, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Status endSelectedTour() {
+        if (!metrics.isEnabled()) return super.endSelectedTour();
+        long start = System.nanoTime();
+        try {
+            return timed(Message.END_SELECTED_TOUR, start, super.endSelectedTour());
+        } catch (RuntimeException e) {
+            failed(Message.END_SELECTED_TOUR, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void setLocation(double easting, double northing) {
+        if (!metrics.isEnabled()) {
+            super.setLocation(easting, northing);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            super.setLocation(easting, northing);
+        } catch (RuntimeException e) {
+            failed(Message.SET_LOCATION, start);
+            throw e;
+        }
+        metrics.record(Message.SET_LOCATION, start, false);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        return setLocations(eastings, northings, null);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps) {
+        if (!metrics.isEnabled()) return super.setLocations(eastings, northings, timestamps);
+        long start = System.nanoTime();
+        TraceResult result;
+        try {
+            result = super.setLocations(eastings, northings, timestamps);
+        } catch (RuntimeException e) {
+            failed(Message.SET_LOCATIONS, start);
+            throw e;
+        }
+        metrics.record(Message.SET_LOCATIONS, start, false);
+        return result;
+    }
+
+    @Override
+    public OutputDelta getOutputDelta() {
+        if (!metrics.isEnabled()) return super.getOutputDelta();
+        long start = System.nanoTime();
+        OutputDelta delta;
+        try {
+            delta = super.getOutputDelta();
+        } catch (RuntimeException e) {
+            failed(Message.GET_OUTPUT_DELTA, start);
+            throw e;
+        }
+        metrics.record(Message.GET_OUTPUT_DELTA, start, false);
+        return delta;
+    }
+}
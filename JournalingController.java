@@ -0,0 +1,132 @@
+package tourguide;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Wraps one author's Controller and logs each tour change it accepts to a
+ * {@link TourJournal}.
+ * <p>
+ * A change is logged only once the wrapped controller has accepted it, and the
+ * message does not return until the entry is on disk. Once a message reports
+ * success, the change survives a crash. If the journal cannot be written, the
+ * message throws UncheckedIOException rather than reporting a success that would
+ * be lost.
+ * <p>
+ * Entries are logged for the author of the wrapped controller, so drafts recovered
+ * from the journal go back to the author they were taken from. The location of each
+ * waypoint is the last location given to this controller, as addWaypoint itself uses.
+ */
+public class JournalingController extends ForwardingController {
+
+    private final TourJournal journal;
+    private final String author;
+    private double easting;
+    private double northing;
+
+    public JournalingController(Controller controller, TourJournal journal) {
+        super(controller);
+        this.journal = journal;
+        this.author = controller.getAuthor();
+    }
+
+    @Override
+    public Status startNewTour(String id, String title, Annotation annotation) {
+        Status status = super.startNewTour(id, title, annotation);
+        if (!(status instanceof Status.Error)) {
+            try {
+                journal.sync(journal.logStartNewTour(author, id, title, annotation));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public Status addWaypoint(Annotation annotation) {
+        Status status = super.addWaypoint(annotation);
+        if (!(status instanceof Status.Error)) {
+            try {
+                journal.sync(journal.logAddWaypoint(author, easting, northing, annotation));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public Status addLeg(Annotation annotation) {
+        Status status = super.addLeg(annotation);
+        if (!(status instanceof Status.Error)) {
+            try {
+                journal.sync(journal.logAddLeg(author, annotation));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return status;
+    }
+
+    /*
+     * endNewTour can fail and still drop the draft, when it is empty or its id has
+     * been taken. That is logged as an abandon, so the draft is not brought back.
+     */
+    @Override
+    public Status endNewTour() {
+        boolean wasCreating = getMode() == Mode.CREATE;
+        Status status = super.endNewTour();
+        try {
+            if (!(status instanceof Status.Error)) {
+                journal.sync(journal.logEndNewTour(author));
+            } else if (wasCreating && getMode() != Mode.CREATE) {
+                journal.sync(journal.logAbandonNewTour(author));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return status;
+    }
+
+    @Override
+    public Status createTour(TourSpec spec) {
+        Status status = super.createTour(spec);
+        if (!(status instanceof Status.Error)) {
+            try {
+                journal.sync(journal.logCreateTour(author, spec));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public void setLocation(double easting, double northing) {
+        this.easting = easting;
+        this.northing = northing;
+        super.setLocation(easting, northing);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        TraceResult result = super.setLocations(eastings, northings);
+        rememberLast(eastings, northings);
+        return result;
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps) {
+        TraceResult result = super.setLocations(eastings, northings, timestamps);
+        rememberLast(eastings, northings);
+        return result;
+    }
+
+    private void rememberLast(double[] eastings, double[] northings) {
+        if (eastings.length > 0) {
+            easting = eastings[eastings.length - 1];
+            northing = northings[northings.length - 1];
+        }
+    }
+}
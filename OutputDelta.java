@@ -0,0 +1,111 @@
+package tourguide;
+
+import java.util.List;
+
+/**
+ * The changes to a session's output since it was last read with
+ * {@link Controller#getOutputDelta()}.
+ * <p>
+ * The output now has size chunks. Each change gives a position and the chunk now
+ * there, in increasing order of position; chunks at other positions are as they
+ * were. A chunk counts as changed only if it is no longer equal to the one last
+ * read, so a bearing or distance that has moved by less than the output's rounding
+ * is not reported.
+ * <p>
+ * The browse overview only ever grows, so once it has been read a change to it
+ * gives just the lines added since. Every chunk and line in a delta is a value the
+ * controller does not change afterwards.
+ */
+public class OutputDelta {
+
+    public static class Change {
+        private final int position;
+        private final Chunk chunk;
+        private final List<Chunk.OverviewLine> appendedLines;
+
+        public Change(int position, Chunk chunk) {
+            this.position = position;
+            this.chunk = chunk;
+            this.appendedLines = null;
+        }
+
+        /**
+         * The overview at position, as last read, has had these lines added.
+         */
+        public Change(int position, List<Chunk.OverviewLine> appendedLines) {
+            this.position = position;
+            this.chunk = null;
+            this.appendedLines = appendedLines;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * @return  the chunk now at the position, or null if lines were appended
+         */
+        public Chunk getChunk() {
+            return chunk;
+        }
+
+        public boolean isAppend() {
+            return appendedLines != null;
+        }
+
+        public List<Chunk.OverviewLine> getAppendedLines() {
+            return appendedLines;
+        }
+
+        public String toString() {
+            return position + ": " + (isAppend() ? "+" + appendedLines : chunk);
+        }
+    }
+
+    private final int previousSize;
+    private final int size;
+    private final List<Change> changes;
+
+    public OutputDelta(int previousSize, int size, List<Change> changes) {
+        this.previousSize = previousSize;
+        this.size = size;
+        this.changes = changes;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return  true if the output is just as it was when last read
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty() && size == previousSize;
+    }
+
+    /**
+     * Brings a copy of the output as last read up to date. The copy should be built
+     * from earlier deltas only, as an overview in it is added to in place.
+     */
+    public void applyTo(List<Chunk> output) {
+        while (output.size() > size) {
+            output.remove(output.size() - 1);
+        }
+        for (Change change : changes) {
+            if (change.isAppend()) {
+                Chunk.BrowseOverview overview = (Chunk.BrowseOverview) output.get(change.position);
+                for (Chunk.OverviewLine line : change.appendedLines) {
+                    overview.addIdAndTitle(line.id, line.title);
+                }
+            } else if (change.position < output.size()) {
+                output.set(change.position, change.chunk);
+            } else {
+                output.add(change.chunk);
+            }
+        }
+    }
+}
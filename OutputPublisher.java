@@ -0,0 +1,263 @@
+package tourguide;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps the controller of one session and pushes its output to subscribers whenever
+ * a message changes it, so clients need not poll {@link Controller#getOutput()}.
+ * <p>
+ * Each item is an unmodifiable copy of the whole output. Outputs count as changed
+ * when they are not equal chunk by chunk, so a bearing that moves by less than the
+ * printed precision is not pushed again. A new subscriber is first sent the current
+ * output.
+ * <p>
+ * Given the session's catalog, a publisher showing the browse overview also pushes
+ * it when other sessions add tours, so browsing clients need not poll either.
+ * <p>
+ * Subscriber demand is respected without ever blocking the session: if a subscriber
+ * has no outstanding demand when the output changes, the new output is held for it,
+ * replacing any older one still held. A slow client thus receives the latest output
+ * when it next asks, and skips the ones it had no time for. Items are delivered on
+ * the thread making the message call or adding the tours, or on the subscriber's
+ * thread when it calls {@link Flow.Subscription#request}.
+ */
+public class OutputPublisher extends ForwardingController implements Flow.Publisher<List<Chunk>> {
+
+    private final CopyOnWriteArrayList<OutputSubscription> subscriptions = new CopyOnWriteArrayList<OutputSubscription>();
+    private volatile List<Chunk> latest;
+    private final TourCatalog catalog;
+    private final Runnable toursAdded = this::publishOverview;
+
+    /**
+     * Creates a publisher for a session whose catalog no other session adds to.
+     */
+    public OutputPublisher(Controller controller) {
+        this(controller, null);
+    }
+
+    /**
+     * @param  catalog  the catalog the session browses, which may be shared
+     */
+    public OutputPublisher(Controller controller, TourCatalog catalog) {
+        super(controller);
+        this.catalog = catalog;
+        latest = snapshot(controller.getOutput());
+        if (catalog != null) {
+            catalog.addListener(toursAdded);
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<Chunk>> subscriber) {
+        OutputSubscription subscription = new OutputSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.offerInitial(latest);
+    }
+
+    /**
+     * Completes every subscription, for when the session ends.
+     */
+    public void close() {
+        if (catalog != null) {
+            catalog.removeListener(toursAdded);
+        }
+        for (OutputSubscription subscription : subscriptions) {
+            subscription.cancel();
+            subscription.subscriber.onComplete();
+        }
+    }
+
+    private synchronized void publishIfChanged() {
+        List<Chunk> output = delegate.getOutput();
+        if (output.equals(latest)) {
+            return;
+        }
+        publish(snapshot(output));
+    }
+
+    /*
+     * Runs on the thread of the session adding tours, so it works from the last output
+     * published rather than reading this session's output as it changes.
+     */
+    private synchronized void publishOverview() {
+        Chunk.BrowseOverview overview = catalog.getOverview();
+        List<Chunk> shown = latest;
+        for (int i = 0; i < shown.size(); i++) {
+            if (shown.get(i) instanceof Chunk.BrowseOverview && !shown.get(i).equals(overview)) {
+                List<Chunk> copy = new ArrayList<Chunk>(shown);
+                copy.set(i, overview.copy());
+                publish(Collections.unmodifiableList(copy));
+                return;
+            }
+        }
+    }
+
+    private void publish(List<Chunk> output) {
+        latest = output;
+        for (OutputSubscription subscription : subscriptions) {
+            subscription.offer(output);
+        }
+    }
+
+    // Follow mode chunks are updated in place, so a published output needs its own copies.
+    private static List<Chunk> snapshot(List<Chunk> output) {
+        List<Chunk> copy = new ArrayList<Chunk>(output.size());
+        for (Chunk chunk : output) {
+            copy.add(chunk.copy());
+        }
+        return Collections.unmodifiableList(copy);
+    }
+
+    @Override
+    public Status startNewTour(String id, String title, Annotation annotation) {
+        Status status = super.startNewTour(id, title, annotation);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status addWaypoint(Annotation annotation) {
+        Status status = super.addWaypoint(annotation);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status addLeg(Annotation annotation) {
+        Status status = super.addLeg(annotation);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status endNewTour() {
+        Status status = super.endNewTour();
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status createTour(TourSpec spec) {
+        Status status = super.createTour(spec);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status showTourDetails(String id) {
+        Status status = super.showTourDetails(id);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status showToursOverview() {
+        Status status = super.showToursOverview();
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status showToursOverviewPage(String cursor, int pageSize) {
+        Status status = super.showToursOverviewPage(cursor, pageSize);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status followTour(String id) {
+        Status status = super.followTour(id);
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public Status endSelectedTour() {
+        Status status = super.endSelectedTour();
+        publishIfChanged();
+        return status;
+    }
+
+    @Override
+    public void setLocation(double easting, double northing) {
+        super.setLocation(easting, northing);
+        publishIfChanged();
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps) {
+        TraceResult result = super.setLocations(eastings, northings, timestamps);
+        publishIfChanged();
+        return result;
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        return setLocations(eastings, northings, null);
+    }
+
+    private final class OutputSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super List<Chunk>> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicReference<List<Chunk>> pending = new AtomicReference<List<Chunk>>();
+        private final AtomicInteger drainers = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        OutputSubscription(Flow.Subscriber<? super List<Chunk>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(List<Chunk> output) {
+            pending.set(output);
+            drain();
+        }
+
+        // Leaves alone any newer output published since the subscriber arrived
+        void offerInitial(List<Chunk> output) {
+            pending.compareAndSet(null, output);
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Subscription request must be positive, was " + n));
+                return;
+            }
+            demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        // Only one thread at a time delivers, so onNext calls never overlap.
+        private void drain() {
+            if (drainers.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!cancelled && demand.get() > 0) {
+                    List<Chunk> next = pending.getAndSet(null);
+                    if (next == null) {
+                        break;
+                    }
+                    demand.decrementAndGet();
+                    subscriber.onNext(next);
+                }
+            } while (drainers.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package tourguide;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import tourguide.ControllerMetrics.Message;
+
+/**
+ * Wraps a Controller and writes every message it is sent, with its arguments and
+ * the time it was sent, to a trace that {@link TraceReplayer} can play back.
+ * <p>
+ * A trace starts with a header naming the messages, so later versions can still
+ * read it. Then each message is one record: its number in that list, the
+ * nanoseconds since the previous message as a varint, then its arguments. Numbers
+ * are varints or raw doubles, and strings are a varint length followed by UTF-8
+ * bytes. getOutput is not recorded, since it changes nothing. getOutputDelta is,
+ * since it changes what the next delta holds.
+ * <p>
+ * A failure to write does not disturb the session. Recording stops and the error
+ * is thrown by {@link #close}.
+ */
+public class RecordingController extends ForwardingController implements Closeable {
+
+    static final int MAGIC = 0x54475452;
+    static final int VERSION = 1;
+
+    private static final Message[] MESSAGES = Message.values();
+
+    private final DataOutputStream out;
+    private long lastNanos;
+    private IOException failure;
+
+    public RecordingController(Controller controller, OutputStream out) throws IOException {
+        super(controller);
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        writeVarLong(this.out, MESSAGES.length);
+        for (Message message : MESSAGES) {
+            writeString(this.out, message.getMessageName());
+        }
+        this.lastNanos = System.nanoTime();
+    }
+
+    @Override
+    public Status startNewTour(String id, String title, Annotation annotation) {
+        synchronized (this) {
+            if (begin(Message.START_NEW_TOUR)) {
+                try {
+                    writeString(out, id);
+                    writeString(out, title);
+                    writeString(out, annotation.toString());
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.startNewTour(id, title, annotation);
+    }
+
+    @Override
+    public Status addWaypoint(Annotation annotation) {
+        synchronized (this) {
+            if (begin(Message.ADD_WAYPOINT)) {
+                try {
+                    writeString(out, annotation.toString());
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.addWaypoint(annotation);
+    }
+
+    @Override
+    public Status addLeg(Annotation annotation) {
+        synchronized (this) {
+            if (begin(Message.ADD_LEG)) {
+                try {
+                    writeString(out, annotation.toString());
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.addLeg(annotation);
+    }
+
+    @Override
+    public Status endNewTour() {
+        synchronized (this) {
+            begin(Message.END_NEW_TOUR);
+        }
+        return super.endNewTour();
+    }
+
+    @Override
+    public Status createTour(TourSpec spec) {
+        synchronized (this) {
+            if (begin(Message.CREATE_TOUR)) {
+                try {
+                    writeString(out, spec.getId());
+                    writeString(out, spec.getTitle());
+                    writeString(out, spec.getAnnotation().toString());
+                    writeVarLong(out, spec.getItems().size());
+                    for (TourSpec.Item item : spec.getItems()) {
+                        out.writeBoolean(item.isLeg());
+                        if (!item.isLeg()) {
+                            out.writeDouble(item.getEasting());
+                            out.writeDouble(item.getNorthing());
+                        }
+                        writeString(out, item.getAnnotation().toString());
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.createTour(spec);
+    }
+
+    @Override
+    public Status showTourDetails(String id) {
+        synchronized (this) {
+            if (begin(Message.SHOW_TOUR_DETAILS)) {
+                try {
+                    writeString(out, id);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.showTourDetails(id);
+    }
+
+    @Override
+    public Status showToursOverview() {
+        synchronized (this) {
+            begin(Message.SHOW_TOURS_OVERVIEW);
+        }
+        return super.showToursOverview();
+    }
+
+    @Override
+    public Status showToursOverviewPage(String cursor, int pageSize) {
+        synchronized (this) {
+            if (begin(Message.SHOW_TOURS_OVERVIEW_PAGE)) {
+                try {
+                    out.writeBoolean(cursor != null);
+                    if (cursor != null) {
+                        writeString(out, cursor);
+                    }
+                    out.writeInt(pageSize);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.showToursOverviewPage(cursor, pageSize);
+    }
+
+    @Override
+    public Status followTour(String id) {
+        synchronized (this) {
+            if (begin(Message.FOLLOW_TOUR)) {
+                try {
+                    writeString(out, id);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        return super.followTour(id);
+    }
+
+    @Override
+    public Status endSelectedTour() {
+        synchronized (this) {
+            begin(Message.END_SELECTED_TOUR);
+        }
+        return super.endSelectedTour();
+    }
+
+    @Override
+    public void setLocation(double easting, double northing) {
+        synchronized (this) {
+            if (begin(Message.SET_LOCATION)) {
+                try {
+                    out.writeDouble(easting);
+                    out.writeDouble(northing);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        super.setLocation(easting, northing);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings) {
+        recordLocations(eastings, northings, null);
+        return super.setLocations(eastings, northings);
+    }
+
+    @Override
+    public TraceResult setLocations(double[] eastings, double[] northings, long[] timestamps) {
+        recordLocations(eastings, northings, timestamps);
+        return super.setLocations(eastings, northings, timestamps);
+    }
+
+    @Override
+    public OutputDelta getOutputDelta() {
+        synchronized (this) {
+            begin(Message.GET_OUTPUT_DELTA);
+        }
+        return super.getOutputDelta();
+    }
+
+    private synchronized void recordLocations(double[] eastings, double[] northings, long[] timestamps) {
+        if (begin(Message.SET_LOCATIONS)) {
+            try {
+                // Arrays of different lengths are recorded as they are, for the
+                // replayed controller to reject in turn
+                writeVarLong(out, eastings.length);
+                for (double e : eastings) {
+                    out.writeDouble(e);
+                }
+                writeVarLong(out, northings.length);
+                for (double n : northings) {
+                    out.writeDouble(n);
+                }
+                out.writeBoolean(timestamps != null);
+                if (timestamps != null) {
+                    writeVarLong(out, timestamps.length);
+                    for (long t : timestamps) {
+                        out.writeLong(t);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    // Writes the start of a record. Returns false if recording has stopped.
+    private boolean begin(Message message) {
+        if (failure != null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        try {
+            out.writeByte(message.ordinal());
+            writeVarLong(out, now - lastNanos);
+        } catch (IOException e) {
+            failure = e;
+            return false;
+        }
+        lastNanos = now;
+        return true;
+    }
+
+    /**
+     * Flushes and closes the trace.
+     * @throws IOException  if any part of the trace could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    //--------------------------
+    // Encoding shared with TraceReplayer
+    //--------------------------
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in trace");
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new EOFException("Bad string length in trace");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
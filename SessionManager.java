@@ -0,0 +1,75 @@
+package tourguide;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one lightweight controller per user session, all working over a single shared
+ * {@link TourCatalog}.
+ * <p>
+ * Each session holds only its own mode, stage, selected tour and output; the tours
+ * themselves are held once in the catalog. Sessions are kept in a concurrent map, so
+ * different threads may drive different sessions at the same time. Calls for any one
+ * session are expected to come from one thread at a time.
+ * <p>
+ * A session id also names the author of tours created in that session. A tour left
+ * part way through creating is kept in the catalog's {@link DraftWorkspaces} after
+ * the session ends, and a later session with the same id carries on with it.
+ */
+public class SessionManager {
+
+	private final TourCatalog catalog;
+	private final double waypointRadius;
+	private final double waypointSeparation;
+	private final double movementThreshold;
+	private final ConcurrentHashMap<String, Controller> sessions = new ConcurrentHashMap<String, Controller>();
+
+	public SessionManager(double waypointRadius, double waypointSeparation) {
+		this(new TourCatalog(), waypointRadius, waypointSeparation);
+	}
+
+	public SessionManager(TourCatalog catalog, double waypointRadius, double waypointSeparation) {
+		this(catalog, waypointRadius, waypointSeparation, 0);
+	}
+
+	/**
+	 * @param  movementThreshold  how far a user following a tour must move before a
+	 *                            new location is acted on; see
+	 *                            {@link ControllerImp#setMovementThreshold}
+	 */
+	public SessionManager(TourCatalog catalog, double waypointRadius, double waypointSeparation,
+	                      double movementThreshold) {
+		this.catalog = catalog;
+		this.waypointRadius = waypointRadius;
+		this.waypointSeparation = waypointSeparation;
+		this.movementThreshold = movementThreshold;
+	}
+
+	/**
+	 * @return  the controller for the given session, starting a new session if there
+	 *          is none with that id
+	 */
+	public Controller getSession(String sessionId) {
+		return sessions.computeIfAbsent(sessionId, id -> newSession(id));
+	}
+
+	/**
+	 * @return  the controller of the session that was ended, or null if there was none
+	 */
+	public Controller endSession(String sessionId) {
+		return sessions.remove(sessionId);
+	}
+
+	public int sessionCount() {
+		return sessions.size();
+	}
+
+	public TourCatalog getCatalog() {
+		return catalog;
+	}
+
+	private Controller newSession(String author) {
+		ControllerImp session = new ControllerImp(catalog, author, waypointRadius, waypointSeparation);
+		session.setMovementThreshold(movementThreshold);
+		return session;
+	}
+}
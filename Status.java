@@ -36,6 +36,10 @@ public abstract class Status {
             this.message = message;
         }
         
+        public String getMessage() {
+            return message;
+        }
+        
         public boolean equals(Object o) {
             if (o instanceof Error) {
                 Error oE = (Error) o;
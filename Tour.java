@@ -1,69 +1,91 @@
 package tourguide;
 
-import java.util.ArrayList;
+/**
+ * A published tour: its id, title and annotation, and its alternating legs and
+ * waypoints.
+ * <p>
+ * Tours are immutable. They are built as a {@link TourDraft} and published once
+ * complete, and every field is final and never changed after that, so one Tour can
+ * be read by any number of threads without copying or locking.
+ * <p>
+ * Waypoints and legs are held column by column rather than as one object each. The
+ * waypoint coordinates are the easting and northing columns of the tour's
+ * {@link WaypointIndex}, and annotations are kept in arrays parallel to them, so a
+ * scan over a tour's waypoints is a walk along a few contiguous arrays.
+ */
+public final class Tour {
 
-public class Tour {
-
-	private String id;
-	private String title;
-	private Annotation annotation;
-	private ArrayList<Waypoint> waypoints = new ArrayList<Waypoint>();
-	private ArrayList<Leg> legs = new ArrayList<Leg>();
+	private final String id;
+	private final String title;
+	private final Annotation annotation;
+	private final WaypointIndex waypointIndex;
+	private final Annotation[] waypointAnnotations;
+	private final Annotation[] legAnnotations;
 	
-	public Tour(String id, String title, Annotation annotation) {
+	/*
+	 * Takes ownership of the index and arrays, which nothing may change afterwards.
+	 */
+	Tour(String id, String title, Annotation annotation, WaypointIndex waypointIndex,
+			Annotation[] waypointAnnotations, Annotation[] legAnnotations) {
 		this.id = id;
 		this.title = title;
 		this.annotation = annotation;
-	}
-	
-	public Tour(Tour other) {
-		this.id = other.getId();
-		this.title = other.getTitle();
-		this.annotation = other.getAnnotation();
-		this.waypoints = other.getWaypoints();
-		this.legs = other.getLegs();
+		this.waypointIndex = waypointIndex;
+		this.waypointAnnotations = waypointAnnotations;
+		this.legAnnotations = legAnnotations;
 	}
 
 	public String getId() {
 		return id;
 	}
 
-	public void setId(String id) {
-		this.id = id;
-	}
-
 	public String getTitle() {
 		return title;
 	}
 
-	public void setTitle(String title) {
-		this.title = title;
-	}
-
 	public Annotation getAnnotation() {
 		return annotation;
 	}
-
-	public void setAnnotation(Annotation annotation) {
-		this.annotation = annotation;
+	
+	public int getWaypointCount() {
+		return waypointAnnotations.length;
 	}
 	
+	public int getLegCount() {
+		return legAnnotations.length;
+	}
 	
-	public ArrayList<Waypoint> getWaypoints() {
-		return waypoints;
+	public double getEasting(int waypoint) {
+		return waypointIndex.getEasting(waypoint);
 	}
 	
-	public ArrayList<Leg> getLegs() {
-		return legs;
+	public double getNorthing(int waypoint) {
+		return waypointIndex.getNorthing(waypoint);
 	}
-
-	public void pushWaypoint(Annotation annotation, Displacement wLocation) {
-		Waypoint waypoint = new Waypoint(annotation, wLocation);
-		waypoints.add(waypoint) ;
+	
+	public Annotation getWaypointAnnotation(int waypoint) {
+		return waypointAnnotations[waypoint];
+	}
+	
+	public Annotation getLegAnnotation(int leg) {
+		return legAnnotations[leg];
+	}
+	
+	/**
+	 * @return  a new Waypoint object holding a copy of the waypoint's details
+	 */
+	public Waypoint getWaypoint(int waypoint) {
+		return new Waypoint(waypointAnnotations[waypoint], getEasting(waypoint), getNorthing(waypoint));
+	}
+	
+	/**
+	 * @return  a new Leg object holding the leg's annotation
+	 */
+	public Leg getLeg(int leg) {
+		return new Leg(legAnnotations[leg]);
 	}
 	
-	public void pushLeg(Annotation annotation) {
-		Leg leg = new Leg(annotation);
-		legs.add(leg) ;
+	public WaypointLookup getWaypointIndex() {
+		return waypointIndex;
 	}
 }
@@ -0,0 +1,208 @@
+package tourguide;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds every tour known to the app, keyed by tour id.
+ * <p>
+ * Lookups and duplicate checks are hash based, so they cost the same however many
+ * tours are held. Insertion order is kept, and the browse overview is extended as
+ * each tour is added rather than being rebuilt from the whole catalog.
+ * <p>
+ * One catalog can be shared by many sessions. It holds only published tours, which
+ * are immutable, so lookups take no lock and followers share the same Tour objects.
+ * Adding tours is serialised so the map and the overview change together.
+ * <p>
+ * Listeners are told when tours have been added, after the catalog's lock is let go,
+ * so they may look tours up or add more. Adding many tours at once tells them once.
+ * <p>
+ * A catalog may start from a {@link TourFile}. The file's tours are decoded one at a
+ * time as they are first looked up, and tours added later are held in memory.
+ */
+public class TourCatalog {
+
+	private final ConcurrentHashMap<String, Tour> tours = new ConcurrentHashMap<String, Tour>();
+	private final Chunk.BrowseOverview overview = new Chunk.BrowseOverview();
+
+	private final TourFile file;
+	private final ConcurrentHashMap<String, Tour> decoded = new ConcurrentHashMap<String, Tour>();
+
+	private final DraftWorkspaces workspaces = new DraftWorkspaces(this);
+	private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+	public TourCatalog() {
+		this.file = null;
+	}
+
+	/**
+	 * Creates a catalog holding the tours of a tour file. Only their ids and titles are
+	 * read now, for the overview.
+	 */
+	public TourCatalog(TourFile file) {
+		this.file = file;
+		for (int i = 0; i < file.size(); i++) {
+			overview.addIdAndTitle(file.idAt(i), file.titleAt(i));
+		}
+	}
+
+	public boolean contains(String id) {
+		return tours.containsKey(id) || (file != null && file.indexOf(id) != -1);
+	}
+
+	/**
+	 * @param  id  the id of the tour to look up
+	 * @return     the tour with the given id, or null if there is none
+	 */
+	public Tour get(String id) {
+		Tour tour = tours.get(id);
+		if (tour == null && file != null) {
+			tour = decoded.get(id);
+			if (tour == null) {
+				int tourNumber = file.indexOf(id);
+				if (tourNumber != -1) {
+					Tour fresh = file.tourAt(tourNumber);
+					tour = decoded.putIfAbsent(id, fresh);
+					if (tour == null) tour = fresh;
+				}
+			}
+		}
+		return tour;
+	}
+
+	/**
+	 * Adds a tour to the catalog and appends its line to the overview.
+	 * @param  tour  the tour to add
+	 * @return       false if a tour with the same id is already held
+	 */
+	public boolean add(Tour tour) {
+		if (!put(tour)) {
+			return false;
+		}
+		toursAdded();
+		return true;
+	}
+
+	private synchronized boolean put(Tour tour) {
+		if (file != null && file.indexOf(tour.getId()) != -1) {
+			return false;
+		}
+		if (tours.putIfAbsent(tour.getId(), tour) != null) {
+			return false;
+		}
+		overview.addIdAndTitle(tour.getId(), tour.getTitle());
+		return true;
+	}
+
+	/**
+	 * Adds many tours as one step: no other tour can be added in between them. Ids
+	 * reserved by authors creating tours are left to those authors.
+	 * @return  the tours not added because a tour with the same id is already held
+	 *          or being created
+	 */
+	public List<Tour> addAll(List<Tour> newTours) {
+		List<Tour> rejected = new ArrayList<Tour>();
+		synchronized (this) {
+			for (Tour tour : newTours) {
+				if (workspaces.isReserved(tour.getId()) || !put(tour)) {
+					rejected.add(tour);
+				}
+			}
+		}
+		if (rejected.size() < newTours.size()) {
+			toursAdded();
+		}
+		return rejected;
+	}
+
+	/**
+	 * @param  listener  run on the adding thread each time tours have been added
+	 */
+	public void addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	private void toursAdded() {
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/*
+	 * Like contains, but waits for any tours being added. An id reserved before this
+	 * is called is therefore either seen by addAll or found here.
+	 */
+	synchronized boolean containsSettled(String id) {
+		return contains(id);
+	}
+
+	public int size() {
+		return tours.size() + (file == null ? 0 : file.size());
+	}
+
+	public Chunk.BrowseOverview getOverview() {
+		return overview;
+	}
+
+	/**
+	 * @return  the drafts of tours being created for this catalog
+	 */
+	public DraftWorkspaces getWorkspaces() {
+		return workspaces;
+	}
+
+	/**
+	 * @return  every tour, in overview order
+	 */
+	public List<Tour> getTours() {
+		List<Chunk.OverviewLine> lines = overview.getLines(0, Integer.MAX_VALUE);
+		List<Tour> result = new ArrayList<Tour>(lines.size());
+		for (Chunk.OverviewLine line : lines) {
+			result.add(get(line.id));
+		}
+		return result;
+	}
+
+	/**
+	 * Writes every tour to a tour file, which can later be opened with
+	 * {@link TourFile#open} and passed to {@link #TourCatalog(TourFile)}.
+	 * <p>
+	 * The tours written are those listed when saving starts; tours added meanwhile
+	 * are left for the next save. Tours from a backing file are decoded one at a time
+	 * as they are written and not kept, so saving a large catalog needs little memory.
+	 */
+	public void saveTo(Path path) throws IOException {
+		final List<Chunk.OverviewLine> lines = overview.getLines(0, Integer.MAX_VALUE);
+		TourFile.write(path, new AbstractList<Tour>() {
+			public Tour get(int i) {
+				return peek(lines.get(i).id);
+			}
+
+			public int size() {
+				return lines.size();
+			}
+		});
+	}
+
+	// Like get, but does not keep tours decoded from the backing file, nor intern
+	// their annotations
+	private Tour peek(String id) {
+		Tour tour = tours.get(id);
+		if (tour == null && file != null) {
+			tour = decoded.get(id);
+			if (tour == null) {
+				tour = file.tourAt(file.indexOf(id), false);
+			}
+		}
+		return tour;
+	}
+}
@@ -0,0 +1,106 @@
+package tourguide;
+
+import java.util.Arrays;
+
+/**
+ * A tour while it is being created. Only the author's session sees a draft; other
+ * sessions see the tour once it has been published with {@link #publish()}.
+ */
+public class TourDraft {
+
+	private final String id;
+	private final String title;
+	private final Annotation annotation;
+	private final WaypointIndex waypointIndex;
+	private Annotation[] waypointAnnotations = new Annotation[4];
+	private Annotation[] legAnnotations = new Annotation[4];
+	private int legCount;
+	
+	// Grid cell size used when the caller has no better idea of the query radius.
+	static final double DEFAULT_CELL_SIZE = 25.0;
+	
+	public TourDraft(String id, String title, Annotation annotation) {
+		this(id, title, annotation, DEFAULT_CELL_SIZE);
+	}
+	
+	/**
+	 * @param  cellSize  grid cell size for the waypoint index, ideally close to the
+	 *                   radius proximity queries are made with
+	 */
+	public TourDraft(String id, String title, Annotation annotation, double cellSize) {
+		this.id = id;
+		this.title = title;
+		this.annotation = annotation;
+		this.waypointIndex = new WaypointIndex(cellSize);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public Annotation getAnnotation() {
+		return annotation;
+	}
+	
+	public int getWaypointCount() {
+		return waypointIndex.size();
+	}
+	
+	public int getLegCount() {
+		return legCount;
+	}
+	
+	public WaypointLookup getWaypointIndex() {
+		return waypointIndex;
+	}
+
+	public void pushWaypoint(Annotation annotation, Displacement wLocation) {
+		pushWaypoint(annotation, wLocation.east, wLocation.north);
+	}
+	
+	public void pushWaypoint(Annotation annotation, double easting, double northing) {
+		int count = waypointIndex.size();
+		if (count == waypointAnnotations.length) {
+			waypointAnnotations = Arrays.copyOf(waypointAnnotations, count * 2);
+		}
+		waypointAnnotations[count] = annotation;
+		waypointIndex.add(easting, northing);
+	}
+	
+	public void pushLeg(Annotation annotation) {
+		if (legCount == legAnnotations.length) {
+			legAnnotations = Arrays.copyOf(legAnnotations, legCount * 2);
+		}
+		legAnnotations[legCount++] = annotation;
+	}
+	
+	/**
+	 * Makes an immutable Tour of the draft as it stands. The tour gets its own exactly
+	 * sized copies of the draft's data, so the draft may go on changing. Its annotations
+	 * are interned, so text repeated across tours is held once.
+	 */
+	public Tour publish() {
+		return publish(true);
+	}
+	
+	/*
+	 * Without interning, for a tour only needed briefly, such as one being saved.
+	 */
+	Tour publish(boolean intern) {
+		return new Tour(id, title, intern ? annotation.intern() : annotation, new WaypointIndex(waypointIndex),
+				copied(waypointAnnotations, waypointIndex.size(), intern),
+				copied(legAnnotations, legCount, intern));
+	}
+	
+	private static Annotation[] copied(Annotation[] annotations, int count, boolean intern) {
+		Annotation[] result = new Annotation[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = intern ? annotations[i].intern() : annotations[i];
+		}
+		return result;
+	}
+}
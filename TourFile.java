@@ -0,0 +1,252 @@
+package tourguide;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A compact binary file of tours, read through a memory mapping.
+ * <p>
+ * Opening a file only maps it; a tour is decoded when it is first asked for, so the
+ * operating system pages in just the parts of the file that are used. Layout, with
+ * all numbers big-endian:
+ * <pre>
+ *   int     MAGIC, int VERSION
+ *   int     tourCount
+ *   int     slotCount                   (a power of two, at least 2 * tourCount)
+ *   long[]  record offsets              (tourCount entries, in catalog order)
+ *   int[]   id hash table               (slotCount entries, tour number + 1, 0 if empty)
+ *   records, one per tour:
+ *     string id, string title, string annotation
+ *     double cellSize                     (of the tour's waypoint index)
+ *     int legCount, then a string annotation per leg
+ *     int waypointCount, then per waypoint: double easting, double northing, string annotation
+ * </pre>
+ * A string is an int byte count followed by that many bytes of UTF-8. The id hash table
+ * is probed linearly from {@code id.hashCode()}, so finding a tour by id reads only the
+ * ids it probes.
+ * <p>
+ * Each tour is decoded onto the same grid it was written from. Files of version 1 had
+ * no cell size, and their tours are decoded onto a grid of the default size.
+ */
+public class TourFile {
+
+	private static final int MAGIC = 0x54475446;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+
+	private final MappedByteBuffer buffer;
+	private final int version;
+	private final int tourCount;
+	private final int slotCount;
+
+	private TourFile(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a tour file");
+		}
+		this.version = buffer.getInt(4);
+		if (version != 1 && version != VERSION) {
+			throw new IOException("Unsupported tour file version " + version);
+		}
+		this.tourCount = buffer.getInt(8);
+		this.slotCount = buffer.getInt(12);
+	}
+
+	/**
+	 * Maps a tour file for reading. Nothing beyond the header is read until tours are
+	 * asked for.
+	 */
+	public static TourFile open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Tour file too large to map: " + path);
+			}
+			return new TourFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Writes tours to a file, replacing any file already at that path.
+	 * @param  tours  the tours to write, in the order they should be listed
+	 */
+	public static void write(Path path, List<Tour> tours) throws IOException {
+		int count = tours.size();
+		int slots = Integer.highestOneBit(Math.max(2, count) * 2 - 1) * 2;
+		long[] offsets = new long[count];
+		int[] table = new int[slots];
+		long recordsStart = HEADER_SIZE + 8L * count + 4L * slots;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(recordsStart);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			long written = 0;
+			for (int i = 0; i < count; i++) {
+				Tour tour = tours.get(i);
+				offsets[i] = recordsStart + written;
+				written += writeTour(out, tour);
+
+				int slot = tour.getId().hashCode() & (slots - 1);
+				while (table[slot] != 0) {
+					slot = (slot + 1) & (slots - 1);
+				}
+				table[slot] = i + 1;
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate((int) recordsStart);
+			header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(slots);
+			for (long offset : offsets) {
+				header.putLong(offset);
+			}
+			for (int entry : table) {
+				header.putInt(entry);
+			}
+			header.flip();
+			channel.position(0);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+		}
+	}
+
+	// Returns the number of bytes written
+	private static long writeTour(DataOutputStream out, Tour tour) throws IOException {
+		int start = out.size();
+		writeString(out, tour.getId());
+		writeString(out, tour.getTitle());
+		writeString(out, tour.getAnnotation().toString());
+		out.writeDouble(tour.getWaypointIndex().getCellSize());
+		out.writeInt(tour.getLegCount());
+		for (int i = 0; i < tour.getLegCount(); i++) {
+			writeString(out, tour.getLegAnnotation(i).toString());
+		}
+		out.writeInt(tour.getWaypointCount());
+		for (int i = 0; i < tour.getWaypointCount(); i++) {
+			out.writeDouble(tour.getEasting(i));
+			out.writeDouble(tour.getNorthing(i));
+			writeString(out, tour.getWaypointAnnotation(i).toString());
+		}
+		return out.size() - start;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public int size() {
+		return tourCount;
+	}
+
+	public String idAt(int tourNumber) {
+		return readString(recordOffset(tourNumber));
+	}
+
+	public String titleAt(int tourNumber) {
+		int pos = recordOffset(tourNumber);
+		return readString(skipString(pos));
+	}
+
+	/**
+	 * @return  the number of the tour with the given id, or -1 if the file has none
+	 */
+	public int indexOf(String id) {
+		int mask = slotCount - 1;
+		int tableStart = HEADER_SIZE + 8 * tourCount;
+		for (int slot = id.hashCode() & mask; ; slot = (slot + 1) & mask) {
+			int entry = buffer.getInt(tableStart + 4 * slot);
+			if (entry == 0) {
+				return -1;
+			}
+			if (idAt(entry - 1).equals(id)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/**
+	 * Decodes a whole tour. Each call builds a new Tour object.
+	 */
+	public Tour tourAt(int tourNumber) {
+		return tourAt(tourNumber, true);
+	}
+
+	/*
+	 * Annotations are interned only if asked, so a tour decoded just to be copied
+	 * elsewhere leaves nothing behind in the pool.
+	 */
+	Tour tourAt(int tourNumber, boolean intern) {
+		int pos = recordOffset(tourNumber);
+		String id = readString(pos);
+		pos = skipString(pos);
+		String title = readString(pos);
+		pos = skipString(pos);
+		Annotation annotation = annotation(pos, intern);
+		pos = skipString(pos);
+		double cellSize = TourDraft.DEFAULT_CELL_SIZE;
+		if (version >= 2) {
+			cellSize = buffer.getDouble(pos);
+			pos += 8;
+		}
+		TourDraft tour = new TourDraft(id, title, annotation, cellSize);
+
+		int legCount = buffer.getInt(pos);
+		pos += 4;
+		Annotation[] legs = new Annotation[legCount];
+		for (int i = 0; i < legCount; i++) {
+			legs[i] = annotation(pos, intern);
+			pos = skipString(pos);
+		}
+
+		// Legs and waypoints alternate in a tour, starting with a leg
+		int waypointCount = buffer.getInt(pos);
+		pos += 4;
+		for (int i = 0; i < Math.max(legCount, waypointCount); i++) {
+			if (i < legCount) {
+				tour.pushLeg(legs[i]);
+			}
+			if (i < waypointCount) {
+				double easting = buffer.getDouble(pos);
+				double northing = buffer.getDouble(pos + 8);
+				pos += 16;
+				tour.pushWaypoint(annotation(pos, intern), easting, northing);
+				pos = skipString(pos);
+			}
+		}
+		return tour.publish(intern);
+	}
+
+	private Annotation annotation(int pos, boolean intern) {
+		String text = readString(pos);
+		return intern ? Annotation.intern(text) : new Annotation(text);
+	}
+
+	private int recordOffset(int tourNumber) {
+		if (tourNumber < 0 || tourNumber >= tourCount) {
+			throw new IndexOutOfBoundsException("No tour " + tourNumber + " in a file of " + tourCount);
+		}
+		return (int) buffer.getLong(HEADER_SIZE + 8 * tourNumber);
+	}
+
+	// Absolute reads only, so one mapping can be read by many threads at once
+	private String readString(int pos) {
+		byte[] bytes = new byte[buffer.getInt(pos)];
+		buffer.get(pos + 4, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int skipString(int pos) {
+		return pos + 4 + buffer.getInt(pos);
+	}
+}
@@ -0,0 +1,282 @@
+package tourguide;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads many tours at once from a text file, instead of through one controller
+ * message per tour, leg and waypoint.
+ * <p>
+ * The file has one record per line, with tab separated fields:
+ * <pre>
+ *   TOUR      id  title  annotation
+ *   LEG       annotation
+ *   WAYPOINT  easting  northing  annotation
+ *   END
+ * </pre>
+ * A TOUR line starts a tour and END finishes it; the LEG and WAYPOINT lines between
+ * them follow the same rules as addLeg and addWaypoint, including the default leg
+ * added before a waypoint that has none. In text fields, \t, \n, \r and \\ stand for
+ * a tab, a newline, a carriage return and a backslash. Blank lines and lines
+ * starting with # are skipped.
+ * <p>
+ * The file is read as a stream. Tours are gathered into batches that are parsed and
+ * validated in parallel on an executor, with only a few batches read ahead of the
+ * parsing. Each tour is checked by a {@link TourValidator}; tours that break a rule
+ * are reported, with every rule they break, and left out. The rest are added to
+ * the catalog together, in file order, once the whole file has been read. A tour
+ * whose id an author has reserved with startNewTour is left out too.
+ */
+public class TourImporter {
+
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * What an import did: the number of tours added, and a message for each tour left out.
+     */
+    public static class Result {
+        private final int imported;
+        private final List<String> errors;
+
+        public Result(int imported, List<String> errors) {
+            this.imported = imported;
+            this.errors = errors;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public String toString() {
+            return "Imported " + imported + " tours, " + errors.size() + " errors";
+        }
+    }
+
+    // The lines of one tour, from its TOUR line to its END line
+    private static class Block {
+        final int firstLine;
+        final List<String> lines = new ArrayList<String>();
+
+        Block(int firstLine) {
+            this.firstLine = firstLine;
+        }
+    }
+
+    // A parsed tour, or the reason it could not be parsed
+    private static class Parsed {
+        final Tour tour;
+        final String error;
+
+        Parsed(Tour tour, String error) {
+            this.tour = tour;
+            this.error = error;
+        }
+    }
+
+    private final TourCatalog catalog;
+    private final TourValidator validator;
+    private final ExecutorService executor;
+
+    public TourImporter(TourCatalog catalog, double waypointRadius, double waypointSeparation) {
+        this(catalog, waypointRadius, waypointSeparation, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Tours are indexed on the same grid as those a ControllerImp with the same
+     * radius and separation creates.
+     */
+    public TourImporter(TourCatalog catalog, double waypointRadius, double waypointSeparation,
+                        ExecutorService executor) {
+        this.catalog = catalog;
+        this.validator = new TourValidator(waypointSeparation, Math.max(waypointRadius, waypointSeparation));
+        this.executor = executor;
+    }
+
+    public Result importFrom(Path path) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return importFrom(in);
+        }
+    }
+
+    public Result importFrom(Reader reader) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        int readAhead = 2 * Runtime.getRuntime().availableProcessors();
+        ArrayDeque<Future<List<Parsed>>> inFlight = new ArrayDeque<Future<List<Parsed>>>();
+        List<Parsed> parsed = new ArrayList<Parsed>();
+        List<String> errors = new ArrayList<String>();
+
+        List<Block> batch = new ArrayList<Block>();
+        Block block = null;
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("TOUR\t")) {
+                if (block != null) {
+                    errors.add("Line " + block.firstLine + ": tour has no END line");
+                }
+                block = new Block(lineNumber);
+            } else if (block == null) {
+                errors.add("Line " + lineNumber + ": record outside a tour");
+                continue;
+            }
+            block.lines.add(line);
+            if (line.equals("END")) {
+                batch.add(block);
+                block = null;
+                if (batch.size() == BATCH_SIZE) {
+                    inFlight.add(submit(batch));
+                    batch = new ArrayList<Block>();
+                    if (inFlight.size() > readAhead) {
+                        parsed.addAll(await(inFlight.poll()));
+                    }
+                }
+            }
+        }
+        if (block != null) {
+            errors.add("Line " + block.firstLine + ": tour has no END line");
+        }
+        if (!batch.isEmpty()) {
+            inFlight.add(submit(batch));
+        }
+        while (!inFlight.isEmpty()) {
+            parsed.addAll(await(inFlight.poll()));
+        }
+
+        List<Tour> tours = new ArrayList<Tour>();
+        Set<String> ids = new HashSet<String>();
+        for (Parsed p : parsed) {
+            if (p.error != null) {
+                errors.add(p.error);
+            } else if (!ids.add(p.tour.getId())) {
+                errors.add("Tour " + p.tour.getId() + ": id appears more than once in the file");
+            } else {
+                tours.add(p.tour);
+            }
+        }
+        List<Tour> rejected = catalog.addAll(tours);
+        for (Tour tour : rejected) {
+            errors.add("Tour " + tour.getId() + ": a tour with the same id already exists or is being created");
+        }
+        return new Result(tours.size() - rejected.size(), errors);
+    }
+
+    private Future<List<Parsed>> submit(final List<Block> blocks) {
+        return executor.submit(() -> {
+            List<Parsed> result = new ArrayList<Parsed>(blocks.size());
+            for (Block b : blocks) {
+                result.add(parse(b));
+            }
+            return result;
+        });
+    }
+
+    private static List<Parsed> await(Future<List<Parsed>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        }
+    }
+
+    private Parsed parse(Block block) {
+        List<String> lines = block.lines;
+        String[] header = lines.get(0).split("\t", -1);
+        if (header.length != 4) {
+            return new Parsed(null, "Line " + block.firstLine + ": TOUR needs an id, a title and an annotation");
+        }
+        TourSpec spec = new TourSpec(unescape(header[1]), unescape(header[2]), new Annotation(unescape(header[3])));
+        String where = "Tour " + spec.getId() + ", line ";
+
+        for (int i = 1; i < lines.size() - 1; i++) {
+            int lineNumber = block.firstLine + i;
+            String[] fields = lines.get(i).split("\t", -1);
+            if (fields[0].equals("LEG") && fields.length == 2) {
+                spec.addLeg(new Annotation(unescape(fields[1])));
+            } else if (fields[0].equals("WAYPOINT") && fields.length == 4) {
+                try {
+                    spec.addWaypoint(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                            new Annotation(unescape(fields[3])));
+                } catch (NumberFormatException e) {
+                    return new Parsed(null, where + lineNumber + ": bad coordinates");
+                }
+            } else {
+                return new Parsed(null, where + lineNumber + ": unrecognised record");
+            }
+        }
+        // Item i of the spec came from line firstLine + 1 + i
+        List<TourValidator.Violation> violations = validator.check(spec);
+        if (!violations.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            for (TourValidator.Violation v : violations) {
+                int lineNumber = v.getItem() == -1 ? block.firstLine : block.firstLine + 1 + v.getItem();
+                message.append(message.length() == 0 ? "" : "; ")
+                       .append(where).append(lineNumber).append(": ").append(v.getMessage());
+            }
+            return new Parsed(null, message.toString());
+        }
+        return new Parsed(validator.build(spec), null);
+    }
+
+    static String escape(String text) {
+        if (text.indexOf('\\') < 0 && text.indexOf('\t') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char n = field.charAt(++i);
+                sb.append(n == 'n' ? '\n' : n == 't' ? '\t' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,628 @@
+package tourguide;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes authors make to tours, so that tours and drafts
+ * survive a restart.
+ * <p>
+ * Each change is appended as one entry with the next log sequence number (LSN). An
+ * entry is durable once {@link #sync} has returned for its LSN. Syncs are group
+ * commits: whichever caller finds no write in progress writes out every entry
+ * appended so far and forces them to disk once, while the callers behind it wait.
+ * Many authors therefore share each fsync instead of queueing for one each.
+ * <p>
+ * Layout, with all numbers big-endian:
+ * <pre>
+ *   int MAGIC, int VERSION
+ *   long base LSN                       (entries follow it; raised by compaction)
+ *   entries, each:
+ *     int length, int CRC-32 of the body, then the body:
+ *     long lsn, byte kind, string author, then what the kind needs
+ * </pre>
+ * A string is an int byte count followed by that many bytes of UTF-8. An entry cut
+ * short by a crash fails its length or checksum; it and anything after it are
+ * dropped when the journal is next opened.
+ */
+public class TourJournal {
+
+	private static final int MAGIC = 0x54474a4c;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+
+	private static final byte START_NEW_TOUR = 1;
+	private static final byte ADD_WAYPOINT = 2;
+	private static final byte ADD_LEG = 3;
+	private static final byte END_NEW_TOUR = 4;
+	private static final byte CREATE_TOUR = 5;
+	private static final byte ABANDON_NEW_TOUR = 6;
+
+	/**
+	 * What replaying the journal found: the catalog replayed into, the last LSN
+	 * applied, and the drafts of authors who had not ended their tours, keyed by
+	 * author.
+	 */
+	public static class Recovery {
+		private final TourCatalog catalog;
+		private final long lastLsn;
+		private final Map<String, TourDraft> drafts;
+
+		Recovery(TourCatalog catalog, long lastLsn, Map<String, TourDraft> drafts) {
+			this.catalog = catalog;
+			this.lastLsn = lastLsn;
+			this.drafts = drafts;
+		}
+
+		public TourCatalog getCatalog() {
+			return catalog;
+		}
+
+		public long getLastLsn() {
+			return lastLsn;
+		}
+
+		public Map<String, TourDraft> getDrafts() {
+			return drafts;
+		}
+	}
+
+	private final Path path;
+	// Replaced only by compact, while it holds off writes
+	private FileChannel channel;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition synced = lock.newCondition();
+	private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+	private long nextLsn;
+	private long durableLsn;
+	private boolean syncing;
+	private IOException failure;
+	// The LSN of the START_NEW_TOUR entry of each author's open draft
+	private final Map<String, Long> openDrafts;
+	// Entries before this offset were checked when opened or were written by this
+	// journal, so replay need not check them again
+	private long verifiedEnd;
+
+	private TourJournal(Path path, FileChannel channel, long lastLsn, Map<String, Long> openDrafts,
+			long verifiedEnd) {
+		this.path = path;
+		this.verifiedEnd = verifiedEnd;
+		this.channel = channel;
+		this.nextLsn = lastLsn + 1;
+		this.durableLsn = lastLsn;
+		this.openDrafts = openDrafts;
+	}
+
+	/**
+	 * Opens a journal, creating it if there is none. Any torn entry at the end is cut
+	 * off, and new entries follow the last whole one.
+	 */
+	public static TourJournal open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long lastLsn = 0;
+			long end = HEADER_SIZE;
+			Map<String, Long> openDrafts = new HashMap<String, Long>();
+			if (channel.size() < HEADER_SIZE) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(0).flip();
+				channel.truncate(0);
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+				channel.force(true);
+			} else {
+				MappedByteBuffer buffer = map(channel);
+				lastLsn = buffer.getLong(8);
+				ByteBuffer entry = buffer.duplicate();
+				CRC32 crc = new CRC32();
+				int position = HEADER_SIZE;
+				int next;
+				while ((next = nextEntry(buffer, entry, crc, position)) != -1) {
+					lastLsn = entry.getLong();
+					byte kind = entry.get();
+					if (kind == START_NEW_TOUR) {
+						openDrafts.put(getString(entry), lastLsn);
+					} else if (kind == END_NEW_TOUR || kind == ABANDON_NEW_TOUR) {
+						openDrafts.remove(getString(entry));
+					}
+					position = next;
+				}
+				end = position;
+				if (end < channel.size()) {
+					channel.truncate(end);
+					channel.force(true);
+				}
+			}
+			channel.position(end);
+			return new TourJournal(path, channel, lastLsn, openDrafts, end);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	//--------------------------
+	// Appending
+	//--------------------------
+
+	public long logStartNewTour(String author, String id, String title, Annotation annotation) throws IOException {
+		lock.lock();
+		try {
+			int start = begin(author, START_NEW_TOUR);
+			putString(id);
+			putString(title);
+			putString(annotation.toString());
+			return end(start);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long logAddWaypoint(String author, double easting, double northing, Annotation annotation) throws IOException {
+		lock.lock();
+		try {
+			int start = begin(author, ADD_WAYPOINT);
+			reserve(16);
+			pending.putDouble(easting).putDouble(northing);
+			putString(annotation.toString());
+			return end(start);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long logAddLeg(String author, Annotation annotation) throws IOException {
+		lock.lock();
+		try {
+			int start = begin(author, ADD_LEG);
+			putString(annotation.toString());
+			return end(start);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long logEndNewTour(String author) throws IOException {
+		lock.lock();
+		try {
+			return end(begin(author, END_NEW_TOUR));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Logs that an author's draft was dropped without being published.
+	 */
+	public long logAbandonNewTour(String author) throws IOException {
+		lock.lock();
+		try {
+			return end(begin(author, ABANDON_NEW_TOUR));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long logCreateTour(String author, TourSpec spec) throws IOException {
+		lock.lock();
+		try {
+			int start = begin(author, CREATE_TOUR);
+			putString(spec.getId());
+			putString(spec.getTitle());
+			putString(spec.getAnnotation().toString());
+			List<TourSpec.Item> items = spec.getItems();
+			reserve(4);
+			pending.putInt(items.size());
+			for (TourSpec.Item item : items) {
+				reserve(17);
+				pending.put((byte) (item.isLeg() ? 1 : 0));
+				if (!item.isLeg()) {
+					pending.putDouble(item.getEasting()).putDouble(item.getNorthing());
+				}
+				putString(item.getAnnotation().toString());
+			}
+			return end(start);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Starts an entry, leaving room for its length and checksum. Returns where it starts.
+	private int begin(String author, byte kind) throws IOException {
+		if (failure != null) {
+			throw new IOException("Journal failed earlier", failure);
+		}
+		int start = pending.position();
+		reserve(17);
+		pending.position(start + 8);
+		pending.putLong(nextLsn).put(kind);
+		putString(author);
+		if (kind == START_NEW_TOUR) {
+			openDrafts.put(author, nextLsn);
+		} else if (kind == END_NEW_TOUR || kind == ABANDON_NEW_TOUR) {
+			openDrafts.remove(author);
+		}
+		return start;
+	}
+
+	private long end(int start) {
+		int length = pending.position() - start - 8;
+		CRC32 crc = new CRC32();
+		crc.update(pending.array(), start + 8, length);
+		pending.putInt(start, length);
+		pending.putInt(start + 4, (int) crc.getValue());
+		return nextLsn++;
+	}
+
+	private void putString(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		reserve(4 + bytes.length);
+		pending.putInt(bytes.length).put(bytes);
+	}
+
+	private void reserve(int bytes) {
+		if (pending.remaining() < bytes) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+	}
+
+	//--------------------------
+	// Group commit
+	//--------------------------
+
+	/**
+	 * Returns once the entry with the given LSN, and every entry before it, is on disk.
+	 */
+	public void sync(long lsn) throws IOException {
+		lock.lock();
+		try {
+			while (durableLsn < lsn) {
+				if (failure != null) {
+					throw new IOException("Journal failed earlier", failure);
+				}
+				if (syncing) {
+					try {
+						synced.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for the journal");
+					}
+					continue;
+				}
+				// Lead a group commit of everything appended so far
+				syncing = true;
+				long upTo = nextLsn - 1;
+				ByteBuffer batch = pending;
+				pending = writing;
+				writing = batch;
+				FileChannel out = channel;
+				lock.unlock();
+				IOException error = null;
+				long written = 0;
+				try {
+					batch.flip();
+					while (batch.hasRemaining()) {
+						out.write(batch);
+					}
+					out.force(false);
+					written = out.position();
+				} catch (IOException e) {
+					error = e;
+				} finally {
+					batch.clear();
+					lock.lock();
+				}
+				syncing = false;
+				if (error != null) {
+					failure = error;
+				} else {
+					durableLsn = upTo;
+					verifiedEnd = written;
+				}
+				synced.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDurableLsn() {
+		lock.lock();
+		try {
+			return durableLsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an LSN that a replay can start after and still rebuild every draft
+	 * open now. It is no later than the last durable entry, nor than the start of
+	 * any open draft.
+	 */
+	public long getReplayStart() {
+		lock.lock();
+		try {
+			long start = durableLsn;
+			for (long draftStart : openDrafts.values()) {
+				start = Math.min(start, draftStart - 1);
+			}
+			return start;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the entries up to the given LSN, once a snapshot holds everything they
+	 * would rebuild, so that the journal only grows between snapshots.
+	 * <p>
+	 * The entries kept are copied to a new file that is renamed over the journal, so
+	 * a crash leaves either the old journal or the new one. Appends carry on
+	 * meanwhile, but syncs wait until the copy is done.
+	 * @param  upToLsn  an LSN no later than {@link #getReplayStart} returned
+	 */
+	public void compact(long upToLsn) throws IOException {
+		FileChannel old;
+		lock.lock();
+		try {
+			while (syncing) {
+				synced.awaitUninterruptibly();
+			}
+			if (failure != null) {
+				throw new IOException("Journal failed earlier", failure);
+			}
+			if (upToLsn > durableLsn) {
+				throw new IllegalArgumentException("Can only drop entries already on disk");
+			}
+			syncing = true;
+			old = channel;
+		} finally {
+			lock.unlock();
+		}
+		FileChannel fresh = null;
+		try {
+			long end = old.position();
+			MappedByteBuffer buffer = map(old);
+			ByteBuffer entry = buffer.duplicate();
+			int from = HEADER_SIZE;
+			int next;
+			while (from < end && (next = nextEntry(buffer, entry, null, from)) != -1 && entry.getLong() <= upToLsn) {
+				from = next;
+			}
+			if (from == HEADER_SIZE) {
+				return;
+			}
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (FileChannel copy = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(upToLsn).flip();
+				while (header.hasRemaining()) {
+					copy.write(header);
+				}
+				long copied = 0;
+				while (copied < end - from) {
+					copied += old.transferTo(from + copied, end - from - copied, copy);
+				}
+				copy.force(true);
+			}
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			fresh = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			fresh.position(fresh.size());
+		} finally {
+			lock.lock();
+			try {
+				if (fresh != null) {
+					channel = fresh;
+					verifiedEnd = fresh.size();
+					old.close();
+				}
+				syncing = false;
+				synced.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Syncs everything appended and closes the journal.
+	 */
+	public void close() throws IOException {
+		long last;
+		lock.lock();
+		try {
+			last = nextLsn - 1;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			sync(last);
+		} finally {
+			lock.lock();
+			try {
+				channel.close();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	//--------------------------
+	// Replay
+	//--------------------------
+
+	/**
+	 * Replays the whole journal: tours that were ended are added to the catalog, and
+	 * drafts still being written are returned.
+	 */
+	public Recovery replay(TourCatalog catalog) throws IOException {
+		return replay(catalog, 0);
+	}
+
+	/**
+	 * Replays the entries after the given LSN. Tours the catalog already holds are
+	 * left as they are.
+	 */
+	public Recovery replay(TourCatalog catalog, long afterLsn) throws IOException {
+		return replay(catalog, afterLsn, TourDraft.DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * @param  cellSize  grid cell size for the waypoint indexes of the tours and
+	 *                   drafts rebuilt, as the controllers that wrote them used
+	 */
+	public Recovery replay(TourCatalog catalog, long afterLsn, double cellSize) throws IOException {
+		MappedByteBuffer buffer;
+		long verified;
+		lock.lock();
+		try {
+			buffer = map(channel);
+			verified = verifiedEnd;
+		} finally {
+			lock.unlock();
+		}
+		Map<String, TourDraft> drafts = new HashMap<String, TourDraft>();
+		long lastLsn = afterLsn;
+		ByteBuffer entry = buffer.duplicate();
+		CRC32 crc = new CRC32();
+		int position = HEADER_SIZE;
+		int next;
+		while ((next = nextEntry(buffer, entry, position < verified ? null : crc, position)) != -1) {
+			long lsn = entry.getLong();
+			if (lsn > afterLsn) {
+				apply(entry, catalog, drafts, cellSize);
+				lastLsn = lsn;
+			}
+			position = next;
+		}
+		return new Recovery(catalog, lastLsn, drafts);
+	}
+
+	private static void apply(ByteBuffer entry, TourCatalog catalog, Map<String, TourDraft> drafts,
+			double cellSize) {
+		byte kind = entry.get();
+		String author = getString(entry);
+		TourDraft draft = drafts.get(author);
+		switch (kind) {
+		case START_NEW_TOUR:
+			drafts.put(author, new TourDraft(getString(entry), getString(entry), new Annotation(getString(entry)),
+					cellSize));
+			break;
+		case ADD_WAYPOINT: {
+			double easting = entry.getDouble();
+			double northing = entry.getDouble();
+			Annotation annotation = new Annotation(getString(entry));
+			if (draft != null) {
+				if (draft.getWaypointCount() == draft.getLegCount()) {
+					draft.pushLeg(Annotation.getDefault());
+				}
+				draft.pushWaypoint(annotation, easting, northing);
+			}
+			break;
+		}
+		case ADD_LEG:
+			if (draft != null) {
+				draft.pushLeg(new Annotation(getString(entry)));
+			}
+			break;
+		case END_NEW_TOUR:
+			if (draft != null) {
+				drafts.remove(author);
+				catalog.add(draft.publish());
+			}
+			break;
+		case ABANDON_NEW_TOUR:
+			drafts.remove(author);
+			break;
+		case CREATE_TOUR: {
+			TourSpec spec = new TourSpec(getString(entry), getString(entry), new Annotation(getString(entry)));
+			int items = entry.getInt();
+			for (int i = 0; i < items; i++) {
+				if (entry.get() == 1) {
+					spec.addLeg(new Annotation(getString(entry)));
+				} else {
+					double easting = entry.getDouble();
+					double northing = entry.getDouble();
+					spec.addWaypoint(easting, northing, new Annotation(getString(entry)));
+				}
+			}
+			// Only valid specs are logged, so the separation is not checked again
+			catalog.add(new TourValidator(0, cellSize).build(spec));
+			break;
+		}
+		default:
+			// Written by a later version; skipped
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Journal too large to map");
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a tour journal");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported journal version " + buffer.getInt(4));
+		}
+		return buffer;
+	}
+
+	// Returns where the entry after the one at position starts, or -1 if there is
+	// no whole entry at position. The entry's body is left between the position and
+	// limit of view. Its checksum is only checked if crc is given.
+	private static int nextEntry(ByteBuffer buffer, ByteBuffer view, CRC32 crc, int position) {
+		if (buffer.limit() - position < 8) {
+			return -1;
+		}
+		int length = buffer.getInt(position);
+		if (length < 9 || length > buffer.limit() - position - 8) {
+			return -1;
+		}
+		view.limit(position + 8 + length).position(position + 8);
+		if (crc != null) {
+			crc.reset();
+			crc.update(view);
+			if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+				return -1;
+			}
+			view.position(position + 8);
+		}
+		return position + 8 + length;
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,622 @@
+package tourguide;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the Controller messages over TCP, one session per connection, using a
+ * {@link SessionManager}.
+ * <p>
+ * The protocol is line based, with tab separated fields escaped as in
+ * {@link TourImporter}. A request is a message name followed by its arguments:
+ * <pre>
+ *   session          id                    (optional, first line only)
+ *   startNewTour     id  title  annotation
+ *   addWaypoint      annotation
+ *   addLeg           annotation
+ *   endNewTour
+ *   createTour       id  title  annotation  items...
+ *   showTourDetails  id
+ *   showToursOverview
+ *   showToursOverviewPage  cursor  pageSize   (an empty cursor for the first page)
+ *   followTour       id
+ *   endSelectedTour
+ *   setLocation      easting  northing
+ *   setLocations     fixes...
+ *   getOutput
+ *   getOutputDelta
+ * </pre>
+ * The items of createTour are {@code LEG annotation} and
+ * {@code WAYPOINT easting northing annotation}, each field its own. Each fix of
+ * setLocations is one field, {@code easting,northing} or
+ * {@code easting,northing,timestamp}; either every fix has a timestamp or none does.
+ * <p>
+ * Each request is answered with {@code OK} or {@code ERROR} and a message, then one
+ * line per chunk of output, then {@code END}. setLocations adds a line
+ * {@code STAGE fixIndex timestamp fromStage toStage} per stage change after the
+ * chunks. getOutputDelta answers with {@code SIZE size} and a line
+ * {@code CHANGE position chunk} per changed chunk instead of the whole output, or
+ * {@code APPEND position lines} for the lines added to an overview already sent.
+ * Escaped chunk text never holds a tab, so these lines cannot be mistaken for chunks.
+ * <p>
+ * A connection that starts with {@code session} takes over that session, closing
+ * any connection it was served on, so a client can reconnect and an author can carry
+ * on with a draft; otherwise it gets a session of its own. The session ends when its
+ * connection closes.
+ * <p>
+ * Every connection is read and written by one thread waiting on an NIO selector, so
+ * an idle connection costs only its socket and buffers, on any JVM from Java 17.
+ * Requests are handled by a pool of worker threads, so a slow message holds up only
+ * its own session. A connection's requests are handled one at a time, in order:
+ * nothing more is read from it until the reply to the last has been sent.
+ */
+public class TourServer implements Closeable {
+
+    private static Logger logger = Logger.getLogger("tourguide");
+
+    private static final int READ_SIZE = 8 * 1024;
+    private static final int MAX_LINE = 1024 * 1024;
+    private static final long ACCEPT_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final SessionManager sessions;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread selectorThread;
+    private final ExecutorService workers;
+    // Connections whose reply a worker has made, to be sent by the selector thread
+    private final ConcurrentLinkedQueue<Connection> answered = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean closed;
+
+    // Only used on the selector thread
+    private final HashMap<String, Connection> connected = new HashMap<String, Connection>();
+    private long connectionCount;
+    private boolean acceptPaused;
+    private long acceptResumeNanos;
+
+    /**
+     * Starts serving on a port of the local host, with a worker thread per processor.
+     * @param  port  the port to listen on, or 0 for any free port
+     */
+    public TourServer(SessionManager sessions, int port) throws IOException {
+        this(sessions, port, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param  workerThreads  how many requests can be handled at once
+     */
+    public TourServer(SessionManager sessions, int port, int workerThreads) throws IOException {
+        this.sessions = sessions;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread worker = new Thread(task, "tourguide-worker-" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.selectorThread = new Thread(this::serve, "tourguide-selector");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select(acceptPauseLeft());
+                Connection connection;
+                while ((connection = answered.poll()) != null) {
+                    try {
+                        connection.answer();
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Connection closed", e);
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Failed serving a connection", e);
+                        connection.close();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    // A failure on one key is that key's alone; the others are still served
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else {
+                            serve((Connection) key.attachment(), key);
+                        }
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Failed serving a connection", e);
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                logger.log(Level.WARNING, "Server stopped", e);
+            }
+        } finally {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            workers.shutdown();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Closing the server", e);
+            }
+        }
+    }
+
+    private void serve(Connection connection, SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                connection.flush();
+            }
+            if (key.isValid() && key.isReadable() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                connection.read();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Connection closed", e);
+            connection.close();
+        }
+    }
+
+    /*
+     * Accepting can fail while the connections already open carry on, for instance
+     * when the process is out of file descriptors. Accepting then pauses for a moment,
+     * rather than spinning on a connection that cannot be taken yet.
+     */
+    private void accept(SelectionKey key) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not accept a connection", e);
+            key.interestOps(0);
+            acceptPaused = true;
+            acceptResumeNanos = System.nanoTime() + ACCEPT_PAUSE_NANOS;
+        }
+    }
+
+    // Milliseconds left before accepting again, or 0, to wait for as long as need be,
+    // once accepting
+    private long acceptPauseLeft() {
+        if (!acceptPaused) {
+            return 0;
+        }
+        long left = acceptResumeNanos - System.nanoTime();
+        if (left > 0) {
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+        }
+        acceptPaused = false;
+        serverChannel.keyFor(selector).interestOps(SelectionKey.OP_ACCEPT);
+        return 0;
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // Bytes read but not yet handled, in write mode. Bytes before scanned hold no newline.
+        private ByteBuffer in = ByteBuffer.allocate(READ_SIZE);
+        private int scanned;
+        // Reply bytes not yet sent, in read mode
+        private ByteBuffer out = ByteBuffer.allocate(0);
+        private String sessionId;
+        private Controller controller;
+        private boolean closing;
+        // Whether a worker is handling a request, and the reply it made
+        private boolean busy;
+        private StringBuilder made;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE) {
+                    throw new IOException("Request line too long");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            if (channel.read(in) == -1) {
+                close();
+                return;
+            }
+            handleLines();
+        }
+
+        // Hands each whole line read to a worker in turn, until one is being handled
+        // or its reply cannot be sent at once. Reading waits until then.
+        private void handleLines() {
+            int start = 0;
+            while (!closing && !busy && !out.hasRemaining()) {
+                int newline = -1;
+                for (int i = scanned; i < in.position(); i++) {
+                    if (in.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline == -1) {
+                    scanned = in.position();
+                    break;
+                }
+                int end = newline > start && in.get(newline - 1) == '\r' ? newline - 1 : newline;
+                String line = new String(in.array(), start, end - start, StandardCharsets.UTF_8);
+                start = scanned = newline + 1;
+                handle(line);
+            }
+            if (!closing) {
+                in.flip();
+                in.position(start);
+                in.compact();
+                scanned -= start;
+                key.interestOps(busy ? 0 : out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        void flush() throws IOException {
+            if (closing) {
+                return;
+            }
+            channel.write(out);
+            if (out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                // Lines that arrived while the reply was being made or sent
+                handleLines();
+            }
+        }
+
+        // Sends the reply a worker has made
+        void answer() throws IOException {
+            busy = false;
+            if (closing) {
+                return;
+            }
+            out = StandardCharsets.UTF_8.encode(CharBuffer.wrap(made));
+            made = null;
+            flush();
+        }
+
+        private void handle(String line) {
+            if (line.isEmpty()) {
+                return;
+            }
+            if (controller == null) {
+                if (line.startsWith("session\t")) {
+                    takeOver(TourImporter.unescape(line.substring("session\t".length())));
+                    return;
+                }
+                // Session ids from clients cannot contain tabs, so this never clashes with one
+                sessionId = "connection\t" + (++connectionCount);
+                connected.put(sessionId, this);
+                controller = sessions.getSession(sessionId);
+            }
+            String[] request = line.split("\t", -1);
+            dispatch(reply -> respond(controller, request, reply));
+        }
+
+        // A client reconnecting takes its session over from its old connection
+        private void takeOver(String requested) {
+            if (requested.indexOf('\t') >= 0) {
+                StringBuilder reply = new StringBuilder();
+                status(reply, new Status.Error("Session ids cannot contain tabs"));
+                reply.append("END\n");
+                closing = true;
+                // Best effort for the last reply before closing
+                try {
+                    channel.write(StandardCharsets.UTF_8.encode(CharBuffer.wrap(reply)));
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+                close();
+                return;
+            }
+            sessionId = requested;
+            Connection previous = connected.put(sessionId, this);
+            if (previous != null) {
+                previous.close();
+            }
+            controller = sessions.getSession(sessionId);
+            dispatch(reply -> {
+                status(reply, Status.OK);
+                output(reply, controller.getOutput());
+                reply.append("END\n");
+            });
+        }
+
+        // Has a worker make the reply to a request. A session taken over by another
+        // connection may still be busy here, so its calls are made holding its lock.
+        private void dispatch(Consumer<StringBuilder> request) {
+            Controller session = controller;
+            busy = true;
+            workers.execute(() -> {
+                StringBuilder reply = new StringBuilder();
+                synchronized (session) {
+                    try {
+                        request.accept(reply);
+                    } catch (RuntimeException e) {
+                        reply.setLength(0);
+                        status(reply, new Status.Error("Bad request: " + e.getMessage()));
+                        output(reply, session.getOutput());
+                        reply.append("END\n");
+                    }
+                }
+                made = reply;
+                answered.add(this);
+                selector.wakeup();
+            });
+        }
+
+        void close() {
+            closing = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closing
+            }
+            // Unless another connection has taken the session over
+            if (sessionId != null && connected.remove(sessionId, this)) {
+                sessions.endSession(sessionId);
+            }
+        }
+    }
+
+    private static void respond(Controller controller, String[] request, StringBuilder reply) {
+        switch (request[0]) {
+        case "setLocations": {
+            TraceResult result = setLocations(controller, request);
+            status(reply, Status.OK);
+            output(reply, result.getOutput());
+            for (TraceResult.StageTransition transition : result.getTransitions()) {
+                reply.append("STAGE\t").append(transition.getFixIndex())
+                        .append('\t').append(transition.getTimestamp())
+                        .append('\t').append(transition.getFromStage())
+                        .append('\t').append(transition.getToStage()).append('\n');
+            }
+            break;
+        }
+        case "getOutputDelta": {
+            checkArguments(request, 0);
+            OutputDelta delta = controller.getOutputDelta();
+            status(reply, Status.OK);
+            reply.append("SIZE\t").append(delta.getSize()).append('\n');
+            for (OutputDelta.Change change : delta.getChanges()) {
+                if (change.isAppend()) {
+                    StringBuilder lines = new StringBuilder();
+                    for (Chunk.OverviewLine line : change.getAppendedLines()) {
+                        lines.append(line);
+                    }
+                    reply.append("APPEND\t").append(change.getPosition()).append('\t')
+                            .append(TourImporter.escape(lines.toString())).append('\n');
+                } else {
+                    reply.append("CHANGE\t").append(change.getPosition()).append('\t')
+                            .append(TourImporter.escape(change.getChunk().toString())).append('\n');
+                }
+            }
+            break;
+        }
+        default:
+            status(reply, handle(controller, request));
+            output(reply, controller.getOutput());
+        }
+        reply.append("END\n");
+    }
+
+    private static Status handle(Controller controller, String[] request) {
+        String name = request[0];
+        switch (name) {
+        case "startNewTour":
+            checkArguments(request, 3);
+            return controller.startNewTour(arg(request, 1), arg(request, 2), new Annotation(arg(request, 3)));
+        case "addWaypoint":
+            checkArguments(request, 1);
+            return controller.addWaypoint(new Annotation(arg(request, 1)));
+        case "addLeg":
+            checkArguments(request, 1);
+            return controller.addLeg(new Annotation(arg(request, 1)));
+        case "endNewTour":
+            checkArguments(request, 0);
+            return controller.endNewTour();
+        case "createTour":
+            return controller.createTour(tourSpec(request));
+        case "showTourDetails":
+            checkArguments(request, 1);
+            return controller.showTourDetails(arg(request, 1));
+        case "showToursOverview":
+            checkArguments(request, 0);
+            return controller.showToursOverview();
+        case "showToursOverviewPage":
+            checkArguments(request, 2);
+            String cursor = arg(request, 1);
+            return controller.showToursOverviewPage(cursor.isEmpty() ? null : cursor,
+                    Integer.parseInt(request[2]));
+        case "followTour":
+            checkArguments(request, 1);
+            return controller.followTour(arg(request, 1));
+        case "endSelectedTour":
+            checkArguments(request, 0);
+            return controller.endSelectedTour();
+        case "setLocation":
+            checkArguments(request, 2);
+            controller.setLocation(Double.parseDouble(request[1]), Double.parseDouble(request[2]));
+            return Status.OK;
+        case "getOutput":
+            checkArguments(request, 0);
+            return Status.OK;
+        default:
+            return new Status.Error("Unknown message " + name);
+        }
+    }
+
+    private static TourSpec tourSpec(String[] request) {
+        if (request.length < 4) {
+            throw new IllegalArgumentException("createTour takes an id, a title, an annotation and items");
+        }
+        TourSpec spec = new TourSpec(arg(request, 1), arg(request, 2), new Annotation(arg(request, 3)));
+        int i = 4;
+        while (i < request.length) {
+            if (request[i].equals("LEG") && i + 1 < request.length) {
+                spec.addLeg(new Annotation(arg(request, i + 1)));
+                i += 2;
+            } else if (request[i].equals("WAYPOINT") && i + 3 < request.length) {
+                spec.addWaypoint(Double.parseDouble(request[i + 1]), Double.parseDouble(request[i + 2]),
+                        new Annotation(arg(request, i + 3)));
+                i += 4;
+            } else {
+                throw new IllegalArgumentException("Bad tour item at field " + i);
+            }
+        }
+        return spec;
+    }
+
+    private static TraceResult setLocations(Controller controller, String[] request) {
+        int count = request.length - 1;
+        double[] eastings = new double[count];
+        double[] northings = new double[count];
+        long[] timestamps = null;
+        for (int i = 0; i < count; i++) {
+            String[] fix = request[i + 1].split(",", -1);
+            if (fix.length != 2 && fix.length != 3) {
+                throw new IllegalArgumentException("A fix is easting,northing or easting,northing,timestamp");
+            }
+            if (i == 0 && fix.length == 3) {
+                timestamps = new long[count];
+            }
+            if ((timestamps != null) != (fix.length == 3)) {
+                throw new IllegalArgumentException("Either every fix has a timestamp or none does");
+            }
+            eastings[i] = Double.parseDouble(fix[0]);
+            northings[i] = Double.parseDouble(fix[1]);
+            if (timestamps != null) {
+                timestamps[i] = Long.parseLong(fix[2]);
+            }
+        }
+        return timestamps == null ? controller.setLocations(eastings, northings)
+                : controller.setLocations(eastings, northings, timestamps);
+    }
+
+    private static void checkArguments(String[] request, int count) {
+        if (request.length != count + 1) {
+            throw new IllegalArgumentException(request[0] + " takes " + count + " arguments");
+        }
+    }
+
+    private static String arg(String[] request, int i) {
+        return TourImporter.unescape(request[i]);
+    }
+
+    private static void status(StringBuilder reply, Status status) {
+        if (status instanceof Status.Error) {
+            reply.append("ERROR\t").append(TourImporter.escape(((Status.Error) status).getMessage())).append('\n');
+        } else {
+            reply.append("OK\n");
+        }
+    }
+
+    private static void output(StringBuilder reply, List<Chunk> output) {
+        for (Chunk chunk : output) {
+            reply.append(TourImporter.escape(chunk.toString())).append('\n');
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes those open. Their sessions end; drafts
+     * are kept.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() != selectorThread) {
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs a server until the process is stopped:
+     * <pre>
+     *   java tourguide.TourServer port waypointRadius waypointSeparation [tourFile [movementThreshold]]
+     * </pre>
+     * An empty tourFile starts with no tours.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: TourServer port waypointRadius waypointSeparation [tourFile [movementThreshold]]");
+            System.exit(2);
+        }
+        TourCatalog catalog = args.length > 3 && !args[3].isEmpty()
+                ? new TourCatalog(TourFile.open(Paths.get(args[3]))) : new TourCatalog();
+        double movementThreshold = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        SessionManager sessions = new SessionManager(catalog, Double.parseDouble(args[1]), Double.parseDouble(args[2]),
+                movementThreshold);
+        TourServer server = new TourServer(sessions, Integer.parseInt(args[0]));
+        System.out.println("Serving on port " + server.getPort());
+        server.selectorThread.join();
+    }
+}
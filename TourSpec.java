@@ -0,0 +1,83 @@
+package tourguide;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A description of a whole tour, given to {@link Controller#createTour} to create the
+ * tour in one message.
+ * <p>
+ * Legs and waypoints are listed in tour order, as they would be given to addLeg and
+ * addWaypoint. As with addWaypoint, a waypoint with no leg before it gets a leg with
+ * the default annotation. A spec is only checked when a tour is created from it.
+ */
+public class TourSpec {
+
+	/**
+	 * One leg or waypoint of the spec.
+	 */
+	public static class Item {
+		private final boolean leg;
+		private final Annotation annotation;
+		private final double easting;
+		private final double northing;
+
+		private Item(boolean leg, Annotation annotation, double easting, double northing) {
+			this.leg = leg;
+			this.annotation = annotation;
+			this.easting = easting;
+			this.northing = northing;
+		}
+
+		public boolean isLeg() {
+			return leg;
+		}
+
+		public Annotation getAnnotation() {
+			return annotation;
+		}
+
+		public double getEasting() {
+			return easting;
+		}
+
+		public double getNorthing() {
+			return northing;
+		}
+	}
+
+	private final String id;
+	private final String title;
+	private final Annotation annotation;
+	private final List<Item> items = new ArrayList<Item>();
+
+	public TourSpec(String id, String title, Annotation annotation) {
+		this.id = id;
+		this.title = title;
+		this.annotation = annotation;
+	}
+
+	public void addLeg(Annotation annotation) {
+		items.add(new Item(true, annotation, 0, 0));
+	}
+
+	public void addWaypoint(double easting, double northing, Annotation annotation) {
+		items.add(new Item(false, annotation, easting, northing));
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public Annotation getAnnotation() {
+		return annotation;
+	}
+
+	public List<Item> getItems() {
+		return items;
+	}
+}
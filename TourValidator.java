@@ -0,0 +1,107 @@
+package tourguide;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks a {@link TourSpec} against the rules that addWaypoint, addLeg and endNewTour
+ * apply one message at a time, and builds the tour once it passes.
+ * <p>
+ * Every broken rule is reported, not just the first. Waypoint separation is checked
+ * with a {@link WaypointIndex}, so a whole tour costs about the same per waypoint
+ * however long it is, rather than comparing every pair of waypoints.
+ */
+public class TourValidator {
+
+	/**
+	 * A broken rule. item is the position in the spec of the leg or waypoint at fault,
+	 * or -1 if the fault is with the tour as a whole.
+	 */
+	public static class Violation {
+		private final int item;
+		private final String message;
+
+		public Violation(int item, String message) {
+			this.item = item;
+			this.message = message;
+		}
+
+		public int getItem() {
+			return item;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public String toString() {
+			return item == -1 ? message : "Item " + item + ": " + message;
+		}
+	}
+
+	private final double waypointSeparation;
+	private final double cellSize;
+
+	public TourValidator(double waypointSeparation) {
+		this(waypointSeparation, waypointSeparation);
+	}
+
+	/**
+	 * @param  cellSize  grid cell size for the waypoint index of tours built
+	 */
+	public TourValidator(double waypointSeparation, double cellSize) {
+		this.waypointSeparation = waypointSeparation;
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * @return  every rule the spec breaks; empty if it can be built
+	 */
+	public List<Violation> check(TourSpec spec) {
+		List<Violation> violations = new ArrayList<Violation>();
+		WaypointIndex index = new WaypointIndex(waypointSeparation);
+		List<TourSpec.Item> items = spec.getItems();
+		boolean afterLeg = false;
+		for (int i = 0; i < items.size(); i++) {
+			TourSpec.Item item = items.get(i);
+			if (item.isLeg()) {
+				if (afterLeg) {
+					violations.add(new Violation(i, "two legs in a row"));
+				}
+				afterLeg = true;
+			} else {
+				int close = index.findCloserThan(item.getEasting(), item.getNorthing(), waypointSeparation);
+				if (close != -1) {
+					violations.add(new Violation(i, "waypoint is too close to waypoint " + close));
+				}
+				index.add(item.getEasting(), item.getNorthing());
+				afterLeg = false;
+			}
+		}
+		if (afterLeg) {
+			violations.add(new Violation(items.size() - 1, "tour ends with a leg"));
+		}
+		if (index.size() == 0) {
+			violations.add(new Violation(-1, "a tour should have at least one waypoint"));
+		}
+		return violations;
+	}
+
+	/**
+	 * Builds a published tour from a spec that {@link #check} found no fault with.
+	 */
+	public Tour build(TourSpec spec) {
+		TourDraft draft = new TourDraft(spec.getId(), spec.getTitle(), spec.getAnnotation(), cellSize);
+		for (TourSpec.Item item : spec.getItems()) {
+			if (item.isLeg()) {
+				draft.pushLeg(item.getAnnotation());
+			} else {
+				if (draft.getWaypointCount() == draft.getLegCount()) {
+					draft.pushLeg(Annotation.getDefault());
+				}
+				draft.pushWaypoint(item.getAnnotation(), item.getEasting(), item.getNorthing());
+			}
+		}
+		return draft.publish();
+	}
+}
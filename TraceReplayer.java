@@ -0,0 +1,298 @@
+package tourguide;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import tourguide.ControllerMetrics.Message;
+
+/**
+ * Plays back a trace written by {@link RecordingController} against any Controller,
+ * and reports the latency and throughput of each kind of message.
+ * <p>
+ * Messages are sent at their recorded times divided by the speed, so a speed of 1
+ * is real time and 10 is ten times faster. A speed of 0 sends each message as soon
+ * as the last has returned. When paced, latency is measured from when a message
+ * was due rather than when it was sent, so a slow message also counts against the
+ * messages it held up.
+ * <p>
+ * Run from the command line with
+ * <pre>
+ *   java tourguide.TraceReplayer trace waypointRadius waypointSeparation [speed [tourFile]]
+ * </pre>
+ * to replay a trace against a new ControllerImp, starting from the tours in a tour
+ * file if one is given.
+ */
+public class TraceReplayer {
+
+    /**
+     * Latencies for each kind of message replayed, and how long the replay took.
+     */
+    public static class Report {
+        private final Map<Message, LatencyHistogram> latencies;
+        private final long elapsedNanos;
+
+        Report(Map<Message, LatencyHistogram> latencies, long elapsedNanos) {
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long count(Message message) {
+            LatencyHistogram histogram = latencies.get(message);
+            return histogram == null ? 0 : histogram.count();
+        }
+
+        public LatencyHistogram getLatencies(Message message) {
+            return latencies.get(message);
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return  messages of the given kind replayed per second of the whole replay
+         */
+        public double throughput(Message message) {
+            return elapsedNanos == 0 ? 0 : count(message) * 1e9 / elapsedNanos;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-22s %10s %12s %10s %10s %10s %10s%n",
+                    "message", "count", "per sec", "p50 us", "p99 us", "p999 us", "max us"));
+            for (Map.Entry<Message, LatencyHistogram> entry : latencies.entrySet()) {
+                LatencyHistogram h = entry.getValue();
+                sb.append(String.format("%-22s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                        entry.getKey().getMessageName(), h.count(), throughput(entry.getKey()),
+                        h.percentile(0.50) / 1e3, h.percentile(0.99) / 1e3,
+                        h.percentile(0.999) / 1e3, h.max() / 1e3));
+            }
+            sb.append(String.format("Replayed in %.3f s%n", elapsedNanos / 1e9));
+            return sb.toString();
+        }
+    }
+
+    private static final long SPIN_NANOS = 100_000;
+
+    private final Controller controller;
+    private final double speed;
+
+    /**
+     * @param  speed  how many times faster than recorded to send messages, or 0 to
+     *                send them as fast as they are handled
+     */
+    public TraceReplayer(Controller controller, double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Speed must not be negative");
+        }
+        this.controller = controller;
+        this.speed = speed;
+    }
+
+    public Report replay(Path trace) throws IOException {
+        try (InputStream in = Files.newInputStream(trace)) {
+            return replay(in);
+        }
+    }
+
+    public Report replay(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != RecordingController.MAGIC) {
+            throw new IOException("Not a tour guide trace");
+        }
+        int version = in.readInt();
+        if (version != RecordingController.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        Message[] messages = new Message[(int) RecordingController.readVarLong(in)];
+        for (int i = 0; i < messages.length; i++) {
+            String name = RecordingController.readString(in);
+            for (Message m : Message.values()) {
+                if (m.getMessageName().equals(name)) {
+                    messages[i] = m;
+                }
+            }
+        }
+
+        Map<Message, LatencyHistogram> latencies = new EnumMap<Message, LatencyHistogram>(Message.class);
+        long start = System.nanoTime();
+        long recordedNanos = 0;
+        int tag;
+        while ((tag = in.read()) != -1) {
+            if (tag >= messages.length || messages[tag] == null) {
+                throw new IOException("Trace holds a message this version does not know");
+            }
+            Message message = messages[tag];
+            recordedNanos += RecordingController.readVarLong(in);
+            long due = System.nanoTime();
+            if (speed > 0) {
+                due = start + (long) (recordedNanos / speed);
+                // Parking overshoots by tens of microseconds, so spin for the last stretch
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    if (wait > SPIN_NANOS) {
+                        LockSupport.parkNanos(wait - SPIN_NANOS);
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+            long sent = send(message, in, due);
+            LatencyHistogram histogram = latencies.get(message);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                latencies.put(message, histogram);
+            }
+            histogram.record(System.nanoTime() - sent);
+        }
+        return new Report(latencies, System.nanoTime() - start);
+    }
+
+    // Reads the arguments of one message and sends it. Returns the time latency is
+    // measured from: when it was due if paced, or once its arguments were read.
+    private long send(Message message, DataInputStream in, long due) throws IOException {
+        switch (message) {
+        case START_NEW_TOUR: {
+            String id = RecordingController.readString(in);
+            String title = RecordingController.readString(in);
+            Annotation annotation = new Annotation(RecordingController.readString(in));
+            long sent = sentAt(due);
+            controller.startNewTour(id, title, annotation);
+            return sent;
+        }
+        case ADD_WAYPOINT: {
+            Annotation annotation = new Annotation(RecordingController.readString(in));
+            long sent = sentAt(due);
+            controller.addWaypoint(annotation);
+            return sent;
+        }
+        case ADD_LEG: {
+            Annotation annotation = new Annotation(RecordingController.readString(in));
+            long sent = sentAt(due);
+            controller.addLeg(annotation);
+            return sent;
+        }
+        case END_NEW_TOUR: {
+            long sent = sentAt(due);
+            controller.endNewTour();
+            return sent;
+        }
+        case CREATE_TOUR: {
+            TourSpec spec = new TourSpec(RecordingController.readString(in), RecordingController.readString(in),
+                    new Annotation(RecordingController.readString(in)));
+            long items = RecordingController.readVarLong(in);
+            for (long i = 0; i < items; i++) {
+                if (in.readBoolean()) {
+                    spec.addLeg(new Annotation(RecordingController.readString(in)));
+                } else {
+                    double easting = in.readDouble();
+                    double northing = in.readDouble();
+                    spec.addWaypoint(easting, northing, new Annotation(RecordingController.readString(in)));
+                }
+            }
+            long sent = sentAt(due);
+            controller.createTour(spec);
+            return sent;
+        }
+        case SHOW_TOUR_DETAILS: {
+            String id = RecordingController.readString(in);
+            long sent = sentAt(due);
+            controller.showTourDetails(id);
+            return sent;
+        }
+        case SHOW_TOURS_OVERVIEW: {
+            long sent = sentAt(due);
+            controller.showToursOverview();
+            return sent;
+        }
+        case SHOW_TOURS_OVERVIEW_PAGE: {
+            String cursor = in.readBoolean() ? RecordingController.readString(in) : null;
+            int pageSize = in.readInt();
+            long sent = sentAt(due);
+            controller.showToursOverviewPage(cursor, pageSize);
+            return sent;
+        }
+        case FOLLOW_TOUR: {
+            String id = RecordingController.readString(in);
+            long sent = sentAt(due);
+            controller.followTour(id);
+            return sent;
+        }
+        case END_SELECTED_TOUR: {
+            long sent = sentAt(due);
+            controller.endSelectedTour();
+            return sent;
+        }
+        case SET_LOCATION: {
+            double easting = in.readDouble();
+            double northing = in.readDouble();
+            long sent = sentAt(due);
+            controller.setLocation(easting, northing);
+            return sent;
+        }
+        case SET_LOCATIONS: {
+            double[] eastings = readDoubles(in);
+            double[] northings = readDoubles(in);
+            long[] timestamps = null;
+            if (in.readBoolean()) {
+                timestamps = new long[(int) RecordingController.readVarLong(in)];
+                for (int i = 0; i < timestamps.length; i++) {
+                    timestamps[i] = in.readLong();
+                }
+            }
+            long sent = sentAt(due);
+            try {
+                if (timestamps == null) {
+                    controller.setLocations(eastings, northings);
+                } else {
+                    controller.setLocations(eastings, northings, timestamps);
+                }
+            } catch (IllegalArgumentException e) {
+                // Rejected when recorded too
+            }
+            return sent;
+        }
+        case GET_OUTPUT_DELTA: {
+            long sent = sentAt(due);
+            controller.getOutputDelta();
+            return sent;
+        }
+        default:
+            throw new IOException("Trace holds a message this version does not know");
+        }
+    }
+
+    private long sentAt(long due) {
+        return speed > 0 ? due : System.nanoTime();
+    }
+
+    private static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] values = new double[(int) RecordingController.readVarLong(in)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: TraceReplayer trace waypointRadius waypointSeparation [speed [tourFile]]");
+            System.exit(2);
+        }
+        double radius = Double.parseDouble(args[1]);
+        double separation = Double.parseDouble(args[2]);
+        double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        TourCatalog catalog = args.length > 4 ? new TourCatalog(TourFile.open(Paths.get(args[4]))) : new TourCatalog();
+        Controller controller = new ControllerImp(catalog, radius, separation);
+        Report report = new TraceReplayer(controller, speed).replay(Paths.get(args[0]));
+        System.out.print(report);
+    }
+}
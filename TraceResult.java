@@ -0,0 +1,82 @@
+package tourguide;
+
+import java.util.List;
+
+/**
+ * The outcome of applying a trace of locations with {@link Controller#setLocations}:
+ * the output for the end of the trace, and every stage change made along the way.
+ * <p>
+ * The output is a copy, which later location updates leave as it is.
+ */
+public class TraceResult {
+
+	/**
+	 * A move from one stage of a followed tour to the next.
+	 */
+	public static class StageTransition {
+		private final int fixIndex;
+		private final long timestamp;
+		private final int fromStage;
+		private final int toStage;
+
+		public StageTransition(int fixIndex, long timestamp, int fromStage, int toStage) {
+			this.fixIndex = fixIndex;
+			this.timestamp = timestamp;
+			this.fromStage = fromStage;
+			this.toStage = toStage;
+		}
+
+		/**
+		 * @return  the position in the trace of the fix that caused the transition
+		 */
+		public int getFixIndex() {
+			return fixIndex;
+		}
+
+		/**
+		 * @return  the timestamp of that fix, or -1 if the trace had no timestamps
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getFromStage() {
+			return fromStage;
+		}
+
+		public int getToStage() {
+			return toStage;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof StageTransition)) return false;
+			StageTransition oST = (StageTransition) o;
+			return fixIndex == oST.fixIndex && timestamp == oST.timestamp
+					&& fromStage == oST.fromStage && toStage == oST.toStage;
+		}
+
+		public int hashCode() {
+			return ((fixIndex * 31 + Long.hashCode(timestamp)) * 31 + fromStage) * 31 + toStage;
+		}
+
+		public String toString() {
+			return "fix " + fixIndex + ": stage " + fromStage + " -> " + toStage;
+		}
+	}
+
+	private final List<Chunk> output;
+	private final List<StageTransition> transitions;
+
+	public TraceResult(List<Chunk> output, List<StageTransition> transitions) {
+		this.output = output;
+		this.transitions = transitions;
+	}
+
+	public List<Chunk> getOutput() {
+		return output;
+	}
+
+	public List<StageTransition> getTransitions() {
+		return transitions;
+	}
+}
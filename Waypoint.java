@@ -1,29 +1,47 @@
 package tourguide;
 
+/**
+ * A point of a tour together with its annotation.
+ * <p>
+ * The position is held as east/north coordinates, with its distance and bearing from
+ * the reference point worked out once when the waypoint is created rather than on
+ * every call. Proximity tests go through the tour's {@link WaypointIndex}, which
+ * compares squared east/north deltas.
+ */
 public class Waypoint {
 
-	private Annotation annotation;
-	private Displacement wLocation;
+	private final Annotation annotation;
+	private final double easting;
+	private final double northing;
+	private final double distance;
+	private final double bearing;
 	
 	public Waypoint(Annotation annotation, Displacement wLocation) {
+		this(annotation, wLocation.east, wLocation.north);
+	}
+	
+	public Waypoint(Annotation annotation, double easting, double northing) {
 		this.annotation = annotation;
-		this.wLocation = wLocation;
+		this.easting = easting;
+		this.northing = northing;
+		this.distance = Displacement.distance(easting, northing);
+		this.bearing = Displacement.bearing(easting, northing);
 	}
 	
 	public double getEasting() {
-		return wLocation.east;
+		return easting;
 	}
 	
 	public double getNorthing() {
-		return wLocation.north;
+		return northing;
 	}
  	
 	public double getDistance() {
-		return wLocation.distance() ;
+		return distance;
 	}
 	
 	public double getBearing() {
-		return wLocation.bearing() ;
+		return bearing;
 	}
 	
 	public Annotation getAnnotation() {
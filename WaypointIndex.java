@@ -0,0 +1,196 @@
+package tourguide;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the east/north positions of a tour's waypoints. It also holds
+ * those positions, in one array of eastings and one of northings.
+ * <p>
+ * Waypoints are bucketed into square cells, so a proximity query only looks at the
+ * waypoints in the few cells around the query point rather than at every waypoint in
+ * the tour. Cells are kept in an open-addressed table keyed by the packed cell
+ * coordinates, and the waypoints in a cell are chained through the {@code next} array,
+ * so neither adding nor querying boxes any values.
+ */
+public class WaypointIndex implements WaypointLookup {
+
+	private static final int EMPTY = -1;
+
+	private final double cellSize;
+
+	private double[] eastings;
+	private double[] northings;
+	private int[] next;
+	private int count;
+
+	private long[] cellKeys;
+	private int[] cellHeads;
+	private int usedCells;
+
+	/**
+	 * @param  cellSize  the side of a grid cell in metres. Queries are cheapest when
+	 *                   this is about the radius they are made with.
+	 */
+	public WaypointIndex(double cellSize) {
+		this.cellSize = cellSize > 0 ? cellSize : 1.0;
+		eastings = new double[8];
+		northings = new double[8];
+		next = new int[8];
+		cellKeys = new long[16];
+		cellHeads = new int[16];
+		Arrays.fill(cellHeads, EMPTY);
+	}
+
+	@Override
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Makes a copy with arrays trimmed to the waypoints held. Used when a tour is
+	 * published, after which the copy is never changed and may be queried from any
+	 * number of threads.
+	 */
+	public WaypointIndex(WaypointIndex other) {
+		this.cellSize = other.cellSize;
+		this.count = other.count;
+		this.eastings = Arrays.copyOf(other.eastings, count);
+		this.northings = Arrays.copyOf(other.northings, count);
+		this.next = Arrays.copyOf(other.next, count);
+		this.cellKeys = other.cellKeys.clone();
+		this.cellHeads = other.cellHeads.clone();
+		this.usedCells = other.usedCells;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public double getEasting(int waypoint) {
+		return eastings[waypoint];
+	}
+
+	@Override
+	public double getNorthing(int waypoint) {
+		return northings[waypoint];
+	}
+
+	/**
+	 * Adds a waypoint. Waypoints are numbered in the order they are added. Only the
+	 * package adds waypoints; others see an index as a {@link WaypointLookup}.
+	 */
+	void add(double easting, double northing) {
+		if (count == eastings.length) {
+			int capacity = Math.max(8, count * 2);
+			eastings = Arrays.copyOf(eastings, capacity);
+			northings = Arrays.copyOf(northings, capacity);
+			next = Arrays.copyOf(next, capacity);
+		}
+		eastings[count] = easting;
+		northings[count] = northing;
+
+		if (2 * (usedCells + 1) > cellKeys.length) {
+			growCells();
+		}
+		long key = cellKey(cell(easting), cell(northing));
+		int slot = findSlot(key);
+		if (cellHeads[slot] == EMPTY) {
+			cellKeys[slot] = key;
+			usedCells++;
+		}
+		next[count] = cellHeads[slot];
+		cellHeads[slot] = count;
+		count++;
+	}
+
+	@Override
+	public int firstWithin(double easting, double northing, double radius) {
+		return search(easting, northing, radius, true);
+	}
+
+	@Override
+	public boolean anyCloserThan(double easting, double northing, double radius) {
+		return search(easting, northing, radius, false) != -1;
+	}
+
+	@Override
+	public int findCloserThan(double easting, double northing, double radius) {
+		return search(easting, northing, radius, false);
+	}
+
+	private int search(double easting, double northing, double radius, boolean inclusive) {
+		double limit = radius * radius;
+		int reach = (int) Math.ceil(radius / cellSize);
+		long cellsToVisit = (2L * reach + 1) * (2L * reach + 1);
+		int best = -1;
+
+		// With a radius far bigger than the cells, a plain scan is cheaper.
+		if (cellsToVisit > count) {
+			for (int i = 0; i < count; i++) {
+				if (close(i, easting, northing, limit, inclusive)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		int cx = cell(easting);
+		int cy = cell(northing);
+		for (int x = cx - reach; x <= cx + reach; x++) {
+			for (int y = cy - reach; y <= cy + reach; y++) {
+				int slot = findSlot(cellKey(x, y));
+				for (int i = cellHeads[slot]; i != EMPTY; i = next[i]) {
+					if ((best == -1 || i < best) && close(i, easting, northing, limit, inclusive)) {
+						if (!inclusive) {
+							return i;
+						}
+						best = i;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	private boolean close(int i, double easting, double northing, double limit, boolean inclusive) {
+		double de = eastings[i] - easting;
+		double dn = northings[i] - northing;
+		double d2 = de * de + dn * dn;
+		return inclusive ? d2 <= limit : d2 < limit;
+	}
+
+	private int cell(double coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	private static long cellKey(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	// Linear probing. Returns the slot holding key, or the empty slot where it belongs.
+	private int findSlot(long key) {
+		int mask = cellKeys.length - 1;
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+		while (cellHeads[slot] != EMPTY && cellKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void growCells() {
+		long[] oldKeys = cellKeys;
+		int[] oldHeads = cellHeads;
+		cellKeys = new long[oldKeys.length * 2];
+		cellHeads = new int[oldHeads.length * 2];
+		Arrays.fill(cellHeads, EMPTY);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldHeads[i] != EMPTY) {
+				int slot = findSlot(oldKeys[i]);
+				cellKeys[slot] = oldKeys[i];
+				cellHeads[slot] = oldHeads[i];
+			}
+		}
+	}
+}
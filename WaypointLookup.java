@@ -0,0 +1,37 @@
+package tourguide;
+
+/**
+ * Read-only access to the waypoint positions of a tour and proximity queries over
+ * them. Published tours hand out their index only through this, so nothing outside
+ * the tour can add to it.
+ */
+public interface WaypointLookup {
+
+	int size();
+
+	/**
+	 * @return  the side of a grid cell of the index, in metres
+	 */
+	double getCellSize();
+
+	double getEasting(int waypoint);
+
+	double getNorthing(int waypoint);
+
+	/**
+	 * @return  the lowest numbered waypoint no further than radius from the given
+	 *          position, or -1 if there is none
+	 */
+	int firstWithin(double easting, double northing, double radius);
+
+	/**
+	 * @return  true if some waypoint is strictly closer than radius to the given position
+	 */
+	boolean anyCloserThan(double easting, double northing, double radius);
+
+	/**
+	 * @return  some waypoint strictly closer than radius to the given position, not
+	 *          necessarily the lowest numbered, or -1 if there is none
+	 */
+	int findCloserThan(double easting, double northing, double radius);
+}
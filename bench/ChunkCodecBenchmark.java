@@ -0,0 +1,53 @@
+package tourguide;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks comparing the text of a follow mode output with its
+ * {@link ChunkCodec} encoding, once the encoder has seen the annotations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChunkCodecBenchmark {
+
+    private List<Chunk> output = new ArrayList<Chunk>();
+    private ChunkCodec.Encoder encoder = new ChunkCodec.Encoder();
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    @Setup
+    public void setUp() {
+        output.add(new Chunk.FollowHeader("Old Town", 1, 2));
+        output.add(new Chunk.FollowWaypoint(new Annotation("Edinburgh Castle\n")));
+        output.add(new Chunk.FollowLeg(new Annotation("Royal Mile\n")));
+        output.add(new Chunk.FollowBearing(72.3, 1480.6));
+        encoder.encodeOutput(output, buffer);
+    }
+
+    @Benchmark
+    public String renderText() {
+        StringBuilder sb = new StringBuilder();
+        for (Chunk chunk : output) {
+            sb.append(chunk);
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.clear();
+        encoder.encodeOutput(output, buffer);
+        return buffer.position();
+    }
+}
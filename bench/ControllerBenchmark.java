@@ -0,0 +1,115 @@
+package tourguide;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the messages of {@link ControllerImp}.
+ * <p>
+ * A catalog of tourCount tours with waypointsPerTour waypoints each is built through
+ * the controller's own create mode messages. Waypoints are laid out along a line
+ * running east, WAYPOINT_SPACING metres apart.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ControllerBenchmark {
+
+    private static final double WAYPOINT_RADIUS = 10.0;
+    private static final double WAYPOINT_SEPARATION = 25.0;
+    private static final double WAYPOINT_SPACING = 50.0;
+
+    @Param({"100", "10000"})
+    public int tourCount;
+
+    @Param({"10", "1000"})
+    public int waypointsPerTour;
+
+    private ControllerImp controller;
+    // Stays in browse mode, over the same catalog as controller
+    private ControllerImp browser;
+    private String middleTourId;
+    private double middleWaypointEasting;
+
+    // Separate controller for addWaypoint, so its growing tour leaves the others alone
+    private ControllerImp author;
+    private int authorWaypoints;
+
+    @Setup(Level.Trial)
+    public void buildCatalog() {
+        TourCatalog catalog = new TourCatalog();
+        controller = new ControllerImp(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        browser = new ControllerImp(catalog, WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        for (int t = 0; t < tourCount; t++) {
+            addTour(controller, "T" + t, waypointsPerTour);
+        }
+        middleTourId = "T" + (tourCount / 2);
+        middleWaypointEasting = (waypointsPerTour / 2) * WAYPOINT_SPACING;
+    }
+
+    @Setup(Level.Iteration)
+    public void startFollowingAndAuthoring() {
+        controller.endSelectedTour();
+        controller.followTour(middleTourId);
+
+        author = new ControllerImp(WAYPOINT_RADIUS, WAYPOINT_SEPARATION);
+        author.startNewTour("A", "Growing tour", Annotation.DEFAULT);
+        authorWaypoints = 0;
+        while (authorWaypoints < waypointsPerTour) {
+            addNextAuthorWaypoint();
+        }
+    }
+
+    private static void addTour(Controller c, String id, int waypoints) {
+        c.startNewTour(id, "Tour " + id, new Annotation("About " + id));
+        for (int w = 0; w < waypoints; w++) {
+            c.setLocation(w * WAYPOINT_SPACING, 0.0);
+            c.addWaypoint(new Annotation("Waypoint " + w));
+        }
+        c.endNewTour();
+    }
+
+    private Status addNextAuthorWaypoint() {
+        author.setLocation(authorWaypoints * WAYPOINT_SPACING, 0.0);
+        authorWaypoints++;
+        return author.addWaypoint(Annotation.DEFAULT);
+    }
+
+    @Benchmark
+    public Object setLocationNearWaypoint() {
+        controller.setLocation(middleWaypointEasting + 1.0, 1.0);
+        return controller.getOutput();
+    }
+
+    @Benchmark
+    public Object setLocationFarFromWaypoints() {
+        controller.setLocation(middleWaypointEasting + WAYPOINT_SPACING / 2, 500.0);
+        return controller.getOutput();
+    }
+
+    @Benchmark
+    public Status addWaypointToGrowingTour() {
+        return addNextAuthorWaypoint();
+    }
+
+    @Benchmark
+    public Status showTourDetails() {
+        return browser.showTourDetails(middleTourId);
+    }
+
+    @Benchmark
+    public void followTour(Blackhole bh) {
+        bh.consume(controller.endSelectedTour());
+        bh.consume(controller.followTour(middleTourId));
+    }
+}
@@ -0,0 +1,44 @@
+package tourguide;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks for {@link Displacement#distance()} and {@link Displacement#bearing()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DisplacementBenchmark {
+
+    // Non-final, so the JIT cannot fold the calls into constants
+    private double east = 300.0;
+    private double north = -500.0;
+    private Displacement displacement = new Displacement(east, north);
+
+    @Benchmark
+    public double distance() {
+        return displacement.distance();
+    }
+
+    @Benchmark
+    public double bearing() {
+        return displacement.bearing();
+    }
+
+    @Benchmark
+    public double distanceWithoutDisplacement() {
+        return Displacement.distance(east, north);
+    }
+
+    @Benchmark
+    public double bearingWithoutDisplacement() {
+        return Displacement.bearing(east, north);
+    }
+}